@@ -0,0 +1,268 @@
+import org.json.simple.JSONValue;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes a synthetic corpus in the format of the BigQuery dumps (one json object per line with
+ * repo_name, path and content), and the class index built from it, so that the benchmarks can
+ * run without the real data and get the same input on every run. The same arguments always
+ * produce the same files:
+ *   java -cp <classpath> CorpusGenerator dataDir [files] [linesPerFile] [seed]
+ * writes dataDir/corpus/dump-000.json, ... and dataDir/classIndex.json with its .repos and .bin
+ * versions (see RepoStats and BinaryClassIndex). Since SymbolSolver and Parser read the index
+ * from ../data, dataDir is the data/ directory next to the one the benchmarks are run from.
+ *
+ * The corpus contains what the pipeline has to deal with in the real dumps. There are forks (a
+ * copy of another repository, which makes the smaller of the two invalid) and repositories with
+ * classes in the default package. There are files without code, files that do not parse, and
+ * files without Javadoc comments. The types used include primitives, java.lang and java.util
+ * classes, classes of the same repository (imported explicitly, through a wildcard, or from the
+ * same package), type parameters, nested classes, and classes that cannot be solved.
+ */
+public class CorpusGenerator {
+    private static final int FILES_PER_REPO = 40; // on average
+    private static final String[] NOUNS = {"Node", "Graph", "Order", "Account", "Event", "Task",
+            "Record", "Buffer", "Token", "Session", "Invoice", "Schedule", "Route", "Cache",
+            "Metric", "Widget", "Report", "Channel", "Query", "Profile"};
+    private static final String[] SUFFIXES = {"", "Service", "Manager", "Factory", "Handler",
+            "Builder", "Util", "Store", "Parser", "Listener"};
+    private static final String[] SUBPACKAGES = {"model", "util", "io", "core", "api", "impl",
+            "service", "config"};
+    private static final String[] JDK_TYPES = {"int", "long", "boolean", "double", "String",
+            "Object", "Integer", "byte[]", "List<String>", "Map<String, Integer>", "Set<Long>",
+            "Iterable<? extends Number>", "Class<?>", "Runnable", "StringBuilder", "Exception"};
+    private static final String[] UNKNOWN_TYPES = {"Widget", "Context", "Handle", "Payload"};
+    private static final String[] VERBS = {"get", "find", "create", "update", "remove", "load",
+            "parse", "merge", "check", "compute"};
+
+    private final Random random;
+    private final List<Repo> repos = new ArrayList<>();
+
+    /**
+     * A repository: its name and the classes in each of its packages
+     */
+    private static class Repo {
+        final String name;
+        final List<String> packages = new ArrayList<>();
+        final List<List<String>> classes = new ArrayList<>(); // for every package
+        boolean defaultPackage; // has a class outside of any package, so it is not valid
+
+        Repo(String name) {
+            this.name = name;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String dataDir = args[0];
+        int files = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int linesPerFile = args.length > 2 ? Integer.parseInt(args[2]) : 2500;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 1;
+
+        List<String> dumps = new CorpusGenerator(seed, files * linesPerFile)
+                .write(dataDir + "/corpus", files, linesPerFile);
+        ClassIndex classIndex = new ClassIndex();
+        for (String dump: dumps)
+            classIndex.addBigQueryData(dump);
+        String indexFile = dataDir + "/classIndex.json";
+        System.out.println("Saving " + indexFile);
+        classIndex.writeJson(indexFile);
+        new RepoStats(classIndex).write(RepoStats.fileFor(indexFile));
+        BinaryClassIndex.write(classIndex, dataDir + "/classIndex.bin");
+        System.out.println(classIndex.getRepoSizes().size() + " repositories, " +
+                classIndex.getValidRepos().size() + " valid");
+    }
+
+    /**
+     * @param seed  the seed of all random choices
+     * @param lines the total number of lines, which determines the number of repositories
+     */
+    public CorpusGenerator(long seed, int lines) {
+        random = new Random(seed);
+        int repoCount = Math.max(1, lines / FILES_PER_REPO);
+        for (int i = 0; i < repoCount; i++) {
+            if (i > 0 && random.nextInt(20) == 0) { // a fork of an earlier repository
+                Repo original = repos.get(random.nextInt(i));
+                Repo fork = new Repo("fork" + i + "/" + original.name.split("/")[1]);
+                fork.packages.addAll(original.packages);
+                fork.classes.addAll(original.classes);
+                repos.add(fork);
+                continue;
+            }
+            String project = NOUNS[random.nextInt(NOUNS.length)].toLowerCase() + i;
+            Repo repo = new Repo("org" + i + "/" + project);
+            String base = "com.org" + i + "." + project;
+            int packageCount = 1 + random.nextInt(4);
+            for (int p = 0; p < packageCount; p++) {
+                repo.packages.add(p == 0 ? base :
+                        base + "." + SUBPACKAGES[random.nextInt(SUBPACKAGES.length)] + p);
+                List<String> classes = new ArrayList<>();
+                int classCount = 2 + random.nextInt(8);
+                for (int c = 0; c < classCount; c++) {
+                    String name = NOUNS[random.nextInt(NOUNS.length)] +
+                            SUFFIXES[random.nextInt(SUFFIXES.length)];
+                    if (!classes.contains(name))
+                        classes.add(name);
+                }
+                repo.classes.add(classes);
+            }
+            repo.defaultPackage = random.nextInt(30) == 0;
+            repos.add(repo);
+        }
+    }
+
+    /**
+     * Write the dump files
+     * @param dir          the directory to write them to
+     * @param files        the number of files
+     * @param linesPerFile the number of lines (i.e. Java files) in each of them
+     * @return the names of the files
+     */
+    public List<String> write(String dir, int files, int linesPerFile) throws IOException {
+        new File(dir).mkdirs();
+        List<String> fileNames = new ArrayList<>();
+        for (int f = 0; f < files; f++) {
+            String fileName = String.format("%s/dump-%03d.json", dir, f);
+            System.out.println("Writing " + fileName + "...");
+            try (Writer writer = new BufferedWriter(Files.newBufferedWriter(Paths.get(fileName),
+                    StandardCharsets.UTF_8), 1 << 16)) {
+                for (int i = 0; i < linesPerFile; i++)
+                    writeLine(writer);
+            }
+            fileNames.add(fileName);
+        }
+        return fileNames;
+    }
+
+    private void writeLine(Writer writer) throws IOException {
+        // a few large repositories and many small ones, as in the real dumps
+        Repo repo = repos.get(random.nextInt(random.nextInt(repos.size()) + 1));
+        int pack = random.nextInt(repo.packages.size());
+        List<String> classes = repo.classes.get(pack);
+        String className = classes.get(random.nextInt(classes.size()));
+        String packageName = repo.packages.get(pack);
+        if (repo.defaultPackage && random.nextInt(10) == 0)
+            packageName = "";
+        String path = "src/main/java/" + (packageName.isEmpty() ? "" :
+                packageName.replace('.', '/') + "/") + className + ".java";
+
+        writer.write("{\"repo_name\":\"" + JSONValue.escape(repo.name) + "\",\"path\":\"" +
+                JSONValue.escape(path) + "\",\"content\":");
+        int kind = random.nextInt(100);
+        if (kind < 2)
+            writer.write("null");
+        else
+            writer.write("\"" + JSONValue.escape(kind < 5 ? brokenSource(className) :
+                    source(repo, pack, packageName, className, kind >= 15)) + "\"");
+        writer.write("}\n");
+    }
+
+    private String brokenSource(String className) {
+        return "public class " + className + " {\n    int x = ;\n}\n";
+    }
+
+    /**
+     * @return the source code of a class, with Javadoc comments if withDocs
+     */
+    private String source(Repo repo, int pack, String packageName, String className,
+                          boolean withDocs) {
+        StringBuilder sb = new StringBuilder();
+        if (!packageName.isEmpty())
+            sb.append("package ").append(packageName).append(";\n\n");
+
+        // the classes of the repository that can be used without a package name
+        List<String> known = new ArrayList<>(repo.classes.get(pack));
+        if (random.nextBoolean())
+            sb.append("import java.util.*;\n");
+        else
+            sb.append("import java.util.List;\nimport java.util.Map;\nimport java.util.Set;\n");
+        for (int p = 0; p < repo.packages.size(); p++) {
+            if (p == pack)
+                continue;
+            List<String> classes = repo.classes.get(p);
+            if (random.nextBoolean()) {
+                sb.append("import ").append(repo.packages.get(p)).append(".*;\n");
+                known.addAll(classes);
+            } else {
+                String imported = classes.get(random.nextInt(classes.size()));
+                sb.append("import ").append(repo.packages.get(p)).append('.')
+                        .append(imported).append(";\n");
+                known.add(imported);
+            }
+        }
+        if (random.nextInt(5) == 0)
+            sb.append("import org.external.lib.*;\n");
+        sb.append('\n');
+
+        boolean generic = random.nextInt(4) == 0;
+        if (withDocs)
+            sb.append("/**\n * The ").append(className).append(" of this project.\n */\n");
+        sb.append("public ").append(random.nextInt(6) == 0 ? "abstract class " : "class ")
+                .append(className).append(generic ? "<T>" : "").append(" {\n");
+        int methods = 1 + random.nextInt(8);
+        for (int m = 0; m < methods; m++)
+            method(sb, "    ", known, generic, withDocs && random.nextInt(10) < 7);
+        if (random.nextInt(4) == 0) {
+            sb.append("\n    public static class Entry {\n");
+            method(sb, "        ", known, false, withDocs);
+            sb.append("    }\n");
+        }
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private void method(StringBuilder sb, String indent, List<String> known, boolean generic,
+                        boolean withDocs) {
+        String name = VERBS[random.nextInt(VERBS.length)] +
+                NOUNS[random.nextInt(NOUNS.length)];
+        boolean typeParameter = random.nextInt(8) == 0;
+        String returnType = random.nextInt(5) == 0 ? "void" : type(known, generic, typeParameter);
+        int params = random.nextInt(4);
+        if (withDocs) {
+            sb.append('\n').append(indent).append("/**\n").append(indent).append(" * ")
+                    .append(Character.toUpperCase(name.charAt(0))).append(name.substring(1))
+                    .append(" for the caller.\n");
+            for (int p = 0; p < params; p++)
+                sb.append(indent).append(" * @param arg").append(p).append(" the argument ")
+                        .append(p).append('\n');
+            if (!returnType.equals("void"))
+                sb.append(indent).append(" * @return the result\n");
+            sb.append(indent).append(" */\n");
+        } else {
+            sb.append('\n');
+        }
+        sb.append(indent).append("public ").append(typeParameter ? "<E> " : "")
+                .append(returnType).append(' ').append(name).append('(');
+        for (int p = 0; p < params; p++)
+            sb.append(p > 0 ? ", " : "").append(type(known, generic, typeParameter))
+                    .append(" arg").append(p);
+        sb.append(") {\n").append(indent).append("    return");
+        sb.append(returnType.equals("void") ? "" : returnType.equals("int") ||
+                returnType.equals("long") || returnType.equals("double") ? " 0" :
+                returnType.equals("boolean") ? " false" : " null");
+        sb.append(";\n").append(indent).append("}\n");
+    }
+
+    private String type(List<String> known, boolean generic, boolean typeParameter) {
+        int kind = random.nextInt(20);
+        if (kind < 8)
+            return JDK_TYPES[random.nextInt(JDK_TYPES.length)];
+        if (kind < 15 || known.isEmpty() && kind < 18) {
+            String type = known.isEmpty() ? "Object" : known.get(random.nextInt(known.size()));
+            return kind == 14 ? "List<" + type + ">" : kind == 13 ? type + "[]" : type;
+        }
+        if (kind < 17)
+            return generic ? "T" : typeParameter ? "E" : "Object";
+        if (kind < 18)
+            return "Map<String, " + (generic ? "T" : "Object") + ">";
+        return UNKNOWN_TYPES[random.nextInt(UNKNOWN_TYPES.length)];
+    }
+}
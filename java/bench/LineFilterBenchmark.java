@@ -0,0 +1,92 @@
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Measures how long it takes to read a BigQuery dump and decode the lines of valid repositories,
+ * once by decoding every line and then checking the repository (what Parser used to do) and once
+ * by reading repo_name from the raw bytes first (BigQueryLines). Java parsing is not included,
+ * since it is the same in both cases. Needs the class index, so it has to be run from a
+ * directory next to data/ (like Parser):
+ *   java -cp <classpath> LineFilterBenchmark rounds dump1.json dump2.json ...
+ */
+public class LineFilterBenchmark {
+    static long sink; // keeps the results alive
+
+    public static void main(String[] args) throws IOException {
+        int rounds = Integer.parseInt(args[0]);
+        Set<String> validRepos = Parser.ValidRepos.repos;
+        System.out.printf("%-30s %8s %8s %10s %10s %10s%n", "file", "lines", "valid",
+                "decode all", "lazy", "saved");
+        for (int i = 1; i < args.length; i++) {
+            String file = args[i];
+            long full = Long.MAX_VALUE;
+            long lazy = Long.MAX_VALUE;
+            for (int round = 0; round < rounds; round++) { // the best of several rounds
+                full = Math.min(full, time(() -> decodeAll(file, validRepos)));
+                lazy = Math.min(lazy, time(() -> decodeValid(file, validRepos)));
+            }
+            long[] counts = counts(file, validRepos);
+            System.out.printf("%-30s %8d %8d %8d ms %8d ms %8d ms%n",
+                    Paths.get(file).getFileName(), counts[0], counts[1], full / 1000000,
+                    lazy / 1000000, (full - lazy) / 1000000);
+        }
+    }
+
+    interface Body {
+        void run() throws IOException;
+    }
+
+    private static long time(Body body) throws IOException {
+        long start = System.nanoTime();
+        body.run();
+        return System.nanoTime() - start;
+    }
+
+    private static void decodeAll(String fileName, Set<String> validRepos) throws IOException {
+        JSONParser jsonParser = new JSONParser();
+        try (Stream<String> lines = Files.lines(Paths.get(fileName))) {
+            lines.forEach(line -> {
+                JSONObject obj = Parser.parseJSON(jsonParser, line);
+                if (obj != null && validRepos.contains((String) obj.get("repo_name")))
+                    sink += obj.size();
+            });
+        }
+    }
+
+    private static void decodeValid(String fileName, Set<String> validRepos) throws IOException {
+        JSONParser jsonParser = new JSONParser();
+        try (Stream<byte[]> lines = BigQueryLines.lines(fileName)) {
+            lines.forEach(line -> {
+                String repo = BigQueryLines.stringField(line, "repo_name");
+                if (repo == null || validRepos.contains(repo)) {
+                    JSONObject obj = Parser.parseJSON(jsonParser,
+                            new String(line, StandardCharsets.UTF_8));
+                    if (obj != null && validRepos.contains((String) obj.get("repo_name")))
+                        sink += obj.size();
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the number of lines in a file and the number of lines of valid repositories
+     */
+    private static long[] counts(String fileName, Set<String> validRepos) throws IOException {
+        long[] counts = new long[2];
+        try (Stream<byte[]> lines = BigQueryLines.lines(fileName)) {
+            lines.forEach(line -> {
+                counts[0]++;
+                if (validRepos.contains(BigQueryLines.stringField(line, "repo_name")))
+                    counts[1]++;
+            });
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,190 @@
+import benchmarks.Workload;
+import com.github.javaparser.JavaParser;
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.body.ClassOrInterfaceDeclaration;
+import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.body.Parameter;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The operations measured by benchmarks.PipelineBenchmark (see benchmarks.Workload for why they
+ * are here). The class index is the global one of SymbolSolver, i.e. ../data/classIndex.json
+ */
+public class PipelineWorkload implements Workload {
+    private static final String INDEX_FILE = "../data/classIndex.json";
+    private static final int EXTRACTED_LINES = 1000; // so that an operation takes about a second
+
+    @Override
+    public LongSupplier prepare(String operation, String corpusDir) throws IOException {
+        switch (operation) {
+            case "solve":
+                return solve(solveQueries(corpusDir));
+            case "solveSingleType":
+                return solveSingleType(solveQueries(corpusDir));
+            case "fromJson": {
+                JSONObject json = ClassIndex.parseJSON(new JSONParser(), INDEX_FILE, true);
+                return () -> {
+                    ClassIndex classIndex = new ClassIndex();
+                    classIndex.fromJson(json);
+                    return classIndex.classToPackToRepo.size();
+                };
+            }
+            case "toJson": {
+                ClassIndex classIndex = new ClassIndex();
+                classIndex.readJson(INDEX_FILE);
+                return () -> classIndex.toJson().size();
+            }
+            case "getValidRepos": {
+                ClassIndex classIndex = new ClassIndex();
+                classIndex.readJson(INDEX_FILE);
+                // getValidRepos keeps what it computed, so the computation is called directly
+                return () -> classIndex.computeValidRepos(classIndex.computeRepoSizes(),
+                        new HashSet<>()).size();
+            }
+            case "extractData":
+                return extractData(readLines(corpusDir, EXTRACTED_LINES));
+            default:
+                throw new IllegalArgumentException("Unknown operation " + operation);
+        }
+    }
+
+    /**
+     * The types of the methods of one file, with the solver of that file
+     */
+    private static class FileTypes {
+        final SymbolSolver solver;
+        final List<String> types = new ArrayList<>();
+        final List<String> classNames = new ArrayList<>(); // the class of every type
+        final List<String> methodNames = new ArrayList<>(); // the method of every type
+
+        FileTypes(SymbolSolver solver) {
+            this.solver = solver;
+        }
+
+        void add(String type, String className, String methodName) {
+            types.add(type);
+            classNames.add(className);
+            methodNames.add(methodName);
+        }
+    }
+
+    /**
+     * Collect the return and parameter types of the methods in the files of valid repositories,
+     * with the class and method names that Parser would solve them with
+     */
+    private static List<FileTypes> solveQueries(String corpusDir) throws IOException {
+        List<FileTypes> files = new ArrayList<>();
+        JSONParser jsonParser = new JSONParser();
+        for (byte[] line: readLines(corpusDir, Integer.MAX_VALUE)) {
+            JSONObject obj = Parser.parseJSON(jsonParser,
+                    new String(line, StandardCharsets.UTF_8));
+            if (obj == null || obj.get("content") == null ||
+                    !Parser.ValidRepos.repos.contains((String) obj.get("repo_name")))
+                continue;
+            CompilationUnit ast;
+            try {
+                ast = JavaParser.parse((String) obj.get("content"));
+            } catch (Exception | AssertionError e) {
+                continue;
+            }
+            FileTypes file = new FileTypes(new SymbolSolver((String) obj.get("repo_name"), ast));
+            for (ClassOrInterfaceDeclaration clazz:
+                    ast.findAll(ClassOrInterfaceDeclaration.class)) {
+                String className = file.solver.solve(clazz.getNameAsString(), "", "");
+                if (className == null)
+                    continue;
+                for (MethodDeclaration method: clazz.getMethods()) {
+                    file.add(method.getType().asString(), className, method.getNameAsString());
+                    for (Parameter param: method.getParameters())
+                        file.add(param.getType().asString(), className,
+                                method.getNameAsString());
+                }
+            }
+            files.add(file);
+        }
+        return files;
+    }
+
+    private static LongSupplier solve(List<FileTypes> files) {
+        return () -> {
+            long length = 0;
+            for (FileTypes file: files) {
+                file.solver.memo = new HashMap<>(); // as for a new solver of the file
+                for (int i = 0; i < file.types.size(); i++) {
+                    String solved = file.solver.solve(file.types.get(i), file.classNames.get(i),
+                            file.methodNames.get(i));
+                    length += solved == null ? 0 : solved.length();
+                }
+            }
+            return length;
+        };
+    }
+
+    private static LongSupplier solveSingleType(List<FileTypes> files) {
+        // the class names in the types, split the way SymbolSolver.solve does
+        List<FileTypes> names = new ArrayList<>();
+        for (FileTypes file: files) {
+            FileTypes fileNames = new FileTypes(file.solver);
+            for (int i = 0; i < file.types.size(); i++)
+                for (String name: file.types.get(i).split("[^A-Za-z0-9.]+"))
+                    if (!name.isEmpty())
+                        fileNames.add(name, file.classNames.get(i), file.methodNames.get(i));
+            names.add(fileNames);
+        }
+        return () -> {
+            long length = 0;
+            for (FileTypes file: names) {
+                file.solver.memo = new HashMap<>();
+                for (int i = 0; i < file.types.size(); i++) {
+                    String solved = file.solver.solveSingleType(file.types.get(i),
+                            file.classNames.get(i), file.methodNames.get(i));
+                    length += solved == null ? 0 : solved.length();
+                }
+            }
+            return length;
+        };
+    }
+
+    private static LongSupplier extractData(List<byte[]> lines) {
+        JSONParser jsonParser = new JSONParser();
+        JavaParser javaParser = new JavaParser();
+        return () -> {
+            long classes = 0;
+            for (byte[] line: lines) {
+                JSONObject record = Parser.extractData(line, jsonParser, javaParser,
+                        ParseLimits.NONE);
+                if (record != null)
+                    classes += ((JSONObject) record.get("classes")).size();
+            }
+            return classes;
+        };
+    }
+
+    /**
+     * @return the first lines of the dump files in a directory (in the order of their names)
+     */
+    private static List<byte[]> readLines(String corpusDir, int maxLines) throws IOException {
+        File[] dumps = new File(corpusDir).listFiles((dir, name) -> name.endsWith(".json"));
+        if (dumps == null || dumps.length == 0)
+            throw new IOException("No dump files in " + corpusDir + ", see CorpusGenerator");
+        List<byte[]> lines = new ArrayList<>();
+        for (String dump: Stream.of(dumps).map(File::getPath).sorted()
+                .collect(Collectors.toList()))
+            try (Stream<byte[]> fileLines = BigQueryLines.lines(dump)) {
+                fileLines.limit(maxLines - lines.size()).forEach(lines::add);
+            }
+        return lines;
+    }
+}
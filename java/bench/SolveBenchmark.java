@@ -0,0 +1,93 @@
+import com.github.javaparser.JavaParser;
+import com.github.javaparser.ast.CompilationUnit;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares SymbolSolver.solve with the regular-expression tokenizer it replaced, with and without
+ * the per-solver memo. SymbolSolver loads the global class index on first use, so this has to be
+ * run from a directory next to data/ (like Parser):
+ *   java -cp <classpath> SolveBenchmark [rounds]
+ */
+public class SolveBenchmark {
+    static final String SOURCE = "package com.example.app;\n" +
+            "import java.util.*;\n" +
+            "import java.util.Map;\n" +
+            "import com.example.model.Node;\n" +
+            "public class Service<K, V> {\n" +
+            "    static class Entry {}\n" +
+            "    public <T> List<T> run(Map<K, V> map, Node[] nodes) { return null; }\n" +
+            "}\n";
+    static final String CLASS_NAME = "com.example.app.Service";
+    static final String METHOD_NAME = "run";
+    static final String[] TYPES = {"int", "String", "void", "List<String>", "Map<K, V>", "T",
+            "Node[]", "Map<String, List<Integer>>", "Service.Entry", "Iterable<? extends Node>",
+            "Comparable<T>", "Object[][]", "Class<?>", "Thread", "Exception"};
+
+    public static void main(String[] args) {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        CompilationUnit ast = JavaParser.parse(SOURCE);
+        SymbolSolver solver = new SymbolSolver("example/app", ast);
+
+        for (int i = 0; i < 2; i++) { // the first pass is a warm-up
+            boolean report = i == 1;
+            solver.memo = null;
+            time("regex tokenizer, no memo", rounds, report, () -> solveWithRegex(solver));
+            time("scanner, no memo", rounds, report, () -> solveAll(solver));
+            solver.memo = new java.util.HashMap<>();
+            time("scanner, memo", rounds, report, () -> solveAll(solver));
+        }
+    }
+
+    private static void time(String name, int rounds, boolean report, Runnable body) {
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++)
+            body.run();
+        long elapsed = System.nanoTime() - start;
+        if (report)
+            System.out.printf("%-26s %8.1f ns/type%n", name,
+                    (double) elapsed / rounds / TYPES.length);
+    }
+
+    static int sink; // keeps the results alive
+
+    private static void solveAll(SymbolSolver solver) {
+        for (String type: TYPES) {
+            String solved = solver.solve(type, CLASS_NAME, METHOD_NAME);
+            sink += solved == null ? 0 : solved.length();
+        }
+    }
+
+    private static void solveWithRegex(SymbolSolver solver) {
+        for (String type: TYPES) {
+            String solved = regexSolve(solver, type, CLASS_NAME, METHOD_NAME);
+            sink += solved == null ? 0 : solved.length();
+        }
+    }
+
+    /**
+     * The implementation of SymbolSolver.solve before the hand-written scanner
+     */
+    private static String regexSolve(SymbolSolver solver, String type, String className,
+                                     String methodName) {
+        Pattern pattern = Pattern.compile("[A-Za-z0-9\\.]*");
+        Matcher m = pattern.matcher(type);
+        StringBuffer sb = new StringBuffer();
+        while (m.find()) {
+            String group = m.group();
+            if (!group.equals("")) {
+                String replacement = solver.solveSingleType(group, className, methodName);
+                if (replacement == null)
+                    return null;
+                try {
+                    m.appendReplacement(sb, replacement);
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+            }
+        }
+        m.appendTail(sb);
+        return String.valueOf(sb);
+    }
+}
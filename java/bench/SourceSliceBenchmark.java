@@ -0,0 +1,81 @@
+import com.github.javaparser.JavaParser;
+import com.github.javaparser.TokenRange;
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.body.MethodDeclaration;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the two ways Parser can get the source of a method: joining the tokens of its range
+ * (TokenRange.toString) and cutting it out of the file (Parser.SourceText). Every method with a
+ * token range in the given BigQuery dumps is used, and the results are checked to be equal:
+ *   java -cp <classpath> SourceSliceBenchmark rounds dump1.json dump2.json ...
+ */
+public class SourceSliceBenchmark {
+    static long sink; // keeps the results alive
+
+    public static void main(String[] args) throws IOException {
+        int rounds = Integer.parseInt(args[0]);
+        List<String> contents = new ArrayList<>();
+        List<List<TokenRange>> ranges = new ArrayList<>(); // the method ranges of every file
+        JSONParser jsonParser = new JSONParser();
+        long methods = 0;
+        long chars = 0;
+        for (int i = 1; i < args.length; i++)
+            for (String line: Files.readAllLines(Paths.get(args[i]))) {
+                JSONObject obj = Parser.parseJSON(jsonParser, line);
+                if (obj == null || obj.get("content") == null)
+                    continue;
+                String content = (String) obj.get("content");
+                CompilationUnit ast;
+                try {
+                    ast = JavaParser.parse(content);
+                } catch (Exception | AssertionError e) {
+                    continue;
+                }
+                List<TokenRange> fileRanges = new ArrayList<>();
+                for (MethodDeclaration method: ast.findAll(MethodDeclaration.class))
+                    if (method.getTokenRange().isPresent()) {
+                        TokenRange range = method.getTokenRange().get();
+                        String joined = range.toString();
+                        if (!joined.equals(new Parser.SourceText(content).slice(range)))
+                            throw new IllegalStateException("Different source for " + joined);
+                        fileRanges.add(range);
+                        methods++;
+                        chars += joined.length();
+                    }
+                contents.add(content);
+                ranges.add(fileRanges);
+            }
+        System.out.println(methods + " methods, " + chars / Math.max(methods, 1) +
+                " characters on average");
+
+        for (int round = 0; round < rounds; round++) {
+            boolean report = round == rounds - 1; // the earlier rounds are a warm-up
+            long start = System.nanoTime();
+            for (List<TokenRange> fileRanges: ranges)
+                for (TokenRange range: fileRanges)
+                    sink += range.toString().length();
+            long joined = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < contents.size(); i++) {
+                Parser.SourceText sourceText = new Parser.SourceText(contents.get(i));
+                for (TokenRange range: ranges.get(i))
+                    sink += sourceText.slice(range).length();
+            }
+            long sliced = System.nanoTime() - start;
+            if (report) {
+                System.out.printf("%-26s %8.1f ns/method%n", "TokenRange.toString",
+                        (double) joined / methods);
+                System.out.printf("%-26s %8.1f ns/method%n", "SourceText.slice",
+                        (double) sliced / methods);
+            }
+        }
+    }
+}
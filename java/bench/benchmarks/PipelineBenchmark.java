@@ -0,0 +1,97 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * The time of the main operations of the pipeline on a synthetic corpus. Every operation works
+ * on all of its input (see PipelineWorkload), so the scores can only be compared for the same
+ * corpus. The corpus and the class index are written by CorpusGenerator to the data/ directory
+ * next to the one the benchmarks are run from, because SymbolSolver reads the index from there:
+ *   mvn -P bench package
+ *   mkdir -p target/bench/run && cd target/bench/run
+ *   java -cp ../../benchmarks.jar CorpusGenerator ../data 4 2500 1
+ *   java -jar ../../benchmarks.jar PipelineBenchmark -rf json
+ * The forked JVMs get the options of the one that starts them, so the options of Parser can be
+ * compared too:
+ *   java -DsliceSource=true -jar ../../benchmarks.jar PipelineBenchmark.extractData
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Thread)
+public class PipelineBenchmark {
+    @Param("../data/corpus")
+    public String corpus;
+
+    private LongSupplier operation;
+
+    @Setup
+    public void setUp(BenchmarkParams params) throws Exception {
+        String benchmark = params.getBenchmark(); // the full name of the method
+        operation = Workload.load(benchmark.substring(benchmark.lastIndexOf('.') + 1), corpus);
+    }
+
+    /**
+     * SymbolSolver.solve for the return and parameter types of the methods of the corpus
+     */
+    @Benchmark
+    public long solve() {
+        return operation.getAsLong();
+    }
+
+    /**
+     * SymbolSolver.solveSingleType for the class names in the same types
+     */
+    @Benchmark
+    public long solveSingleType() {
+        return operation.getAsLong();
+    }
+
+    /**
+     * ClassIndex.fromJson of the class index of the corpus
+     */
+    @Benchmark
+    public long fromJson() {
+        return operation.getAsLong();
+    }
+
+    /**
+     * ClassIndex.toJson of the same index
+     */
+    @Benchmark
+    public long toJson() {
+        return operation.getAsLong();
+    }
+
+    /**
+     * ClassIndex.getValidRepos of the same index
+     */
+    @Benchmark
+    public long getValidRepos() {
+        return operation.getAsLong();
+    }
+
+    /**
+     * Parser.extractData, from the line of a dump file to the record, for the lines of the corpus
+     */
+    @Benchmark
+    public long extractData() {
+        return operation.getAsLong();
+    }
+}
@@ -0,0 +1,30 @@
+package benchmarks;
+
+import java.util.function.LongSupplier;
+
+/**
+ * An operation of the pipeline that is measured by PipelineBenchmark. JMH does not accept
+ * benchmarks in the default package, and the pipeline classes are in the default package, which
+ * cannot be imported from any other. So the operations are implemented by a class in the default
+ * package (PipelineWorkload) that is loaded by name. This happens once per trial, so the
+ * measured code calls the pipeline directly.
+ */
+public interface Workload {
+    String IMPLEMENTATION = "PipelineWorkload";
+
+    /**
+     * Prepare the input of an operation (not measured)
+     * @param operation the name of the operation, which is the name of its benchmark
+     * @param corpusDir the directory with the dump files written by CorpusGenerator
+     * @return the operation, which returns something computed from its result so that the
+     *         work cannot be optimized away
+     * @throws Exception
+     */
+    LongSupplier prepare(String operation, String corpusDir) throws Exception;
+
+    static LongSupplier load(String operation, String corpusDir) throws Exception {
+        Workload workload = (Workload) Class.forName(IMPLEMENTATION).getDeclaredConstructor()
+                .newInstance();
+        return workload.prepare(operation, corpusDir);
+    }
+}
@@ -0,0 +1,276 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Helpers for reading the files downloaded from BigQuery without decoding all of them. Lines are
+ * read as raw UTF-8 bytes, and single string fields (like repo_name, which comes before the
+ * content of the file) can be pulled out of a line without decoding or even looking at the rest
+ * of it. This way lines that are going to be filtered out never become Strings or JSONObjects.
+ */
+public class BigQueryLines {
+
+    /**
+     * Read the lines of a file as byte arrays, without the line terminators (\n, \r or \r\n,
+     * same as Files.lines). The file is decompressed if needed (see DataFiles). The stream has
+     * to be closed to close the file
+     * @param fileName
+     * @return
+     * @throws IOException
+     */
+    public static Stream<byte[]> lines(String fileName) throws IOException {
+        return lines(DataFiles.openInput(fileName));
+    }
+
+    /**
+     * Same as lines(fileName), but only the lines from the byte at start to the byte before end,
+     * which have to be the beginnings of lines (or the end of the file, see Coordinator.split)
+     * @param fileName an uncompressed file
+     * @param start
+     * @param end
+     * @return
+     * @throws IOException
+     */
+    public static Stream<byte[]> lines(String fileName, long start, long end)
+            throws IOException {
+        return lines(DataFiles.openInput(fileName, start, end));
+    }
+
+    private static Stream<byte[]> lines(InputStream in) {
+        LineIterator iterator = new LineIterator(in);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator,
+                Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(() -> {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
+    /**
+     * Find a field of the top-level object in a line and decode its value, if it is a string.
+     * Only the bytes up to the end of that value are looked at.
+     * @param line a json object encoded in UTF-8
+     * @param key  the name of the field
+     * @return the value, or null if the line has no such field, the value is not a string or
+     * the line is not a json object (the caller can fall back to a full parse to find out)
+     */
+    public static String stringField(byte[] line, String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int i = skipSpaces(line, 0);
+        if (i >= line.length || line[i] != '{')
+            return null;
+        i = skipSpaces(line, i + 1);
+        while (i < line.length && line[i] == '"') {
+            int keyEnd = skipString(line, i);
+            if (keyEnd < 0)
+                return null;
+            boolean matches = keyMatches(line, i + 1, keyEnd - 1, keyBytes, key);
+            i = skipSpaces(line, keyEnd);
+            if (i >= line.length || line[i] != ':')
+                return null;
+            i = skipSpaces(line, i + 1);
+            if (matches)
+                return i < line.length && line[i] == '"' ? decodeString(line, i) : null;
+            i = skipValue(line, i);
+            if (i < 0)
+                return null;
+            i = skipSpaces(line, i);
+            if (i >= line.length || line[i] != ',')
+                return null;
+            i = skipSpaces(line, i + 1);
+        }
+        return null;
+    }
+
+    private static boolean keyMatches(byte[] line, int from, int to, byte[] keyBytes,
+                                      String key) {
+        for (int i = from; i < to; i++)
+            if (line[i] == '\\') // rare, compare the decoded key instead
+                return key.equals(decodeString(line, from - 1));
+        if (to - from != keyBytes.length)
+            return false;
+        for (int i = 0; i < keyBytes.length; i++)
+            if (line[from + i] != keyBytes[i])
+                return false;
+        return true;
+    }
+
+    private static int skipSpaces(byte[] line, int i) {
+        while (i < line.length && (line[i] == ' ' || line[i] == '\t' || line[i] == '\n' ||
+                line[i] == '\r'))
+            i++;
+        return i;
+    }
+
+    /**
+     * @param line
+     * @param i    the position of the opening quote
+     * @return the position after the closing quote or -1 if there is none
+     */
+    private static int skipString(byte[] line, int i) {
+        for (i++; i < line.length; i++) {
+            if (line[i] == '\\')
+                i++;
+            else if (line[i] == '"')
+                return i + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the position after a value that starts at i, or -1 if the line ends before it does
+     */
+    private static int skipValue(byte[] line, int i) {
+        if (line[i] == '"')
+            return skipString(line, i);
+        int depth = 0;
+        for (; i < line.length; i++) {
+            byte b = line[i];
+            if (b == '"') {
+                i = skipString(line, i);
+                if (i < 0)
+                    return -1;
+                i--;
+            } else if (b == '{' || b == '[') {
+                depth++;
+            } else if (b == '}' || b == ']') {
+                if (depth == 0)
+                    return i;
+                if (--depth == 0)
+                    return i + 1;
+            } else if (b == ',' && depth == 0) {
+                return i;
+            }
+        }
+        return depth == 0 ? i : -1;
+    }
+
+    /**
+     * Decode a json string the same way JSONParser does
+     * @param line
+     * @param i    the position of the opening quote
+     * @return the string or null if it is not terminated or has a broken escape sequence
+     */
+    private static String decodeString(byte[] line, int i) {
+        StringBuilder result = new StringBuilder();
+        int start = ++i; // the beginning of the current run of bytes without escapes
+        for (; i < line.length; i++) {
+            if (line[i] == '"') {
+                result.append(new String(line, start, i - start, StandardCharsets.UTF_8));
+                return result.toString();
+            }
+            if (line[i] != '\\')
+                continue;
+            result.append(new String(line, start, i - start, StandardCharsets.UTF_8));
+            if (++i >= line.length)
+                return null;
+            switch (line[i]) {
+                case '"': result.append('"'); break;
+                case '\\': result.append('\\'); break;
+                case '/': result.append('/'); break;
+                case 'b': result.append('\b'); break;
+                case 'f': result.append('\f'); break;
+                case 'n': result.append('\n'); break;
+                case 'r': result.append('\r'); break;
+                case 't': result.append('\t'); break;
+                case 'u':
+                    if (i + 4 >= line.length)
+                        return null;
+                    int code = 0;
+                    for (int j = i + 1; j <= i + 4; j++) {
+                        int digit = Character.digit(line[j], 16);
+                        if (digit < 0)
+                            return null;
+                        code = code * 16 + digit;
+                    }
+                    result.append((char) code);
+                    i += 4;
+                    break;
+                default:
+                    return null;
+            }
+            start = i + 1;
+        }
+        return null;
+    }
+
+    /**
+     * Splits an input stream into lines of bytes
+     */
+    static class LineIterator implements Iterator<byte[]> {
+        private final InputStream in;
+        private final byte[] buffer = new byte[1 << 16];
+        private int position = 0;
+        private int limit = 0;
+        private byte[] line = new byte[1 << 12]; // the line being read
+        private byte[] next; // the line that next() will return, null if it has not been read
+        private boolean skipNewLine = false; // the last line ended with \r
+
+        LineIterator(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null)
+                next = readLine();
+            return next != null;
+        }
+
+        @Override
+        public byte[] next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            byte[] result = next;
+            next = null;
+            return result;
+        }
+
+        private byte[] readLine() {
+            int length = 0;
+            try {
+                while (true) {
+                    if (position == limit) {
+                        limit = in.read(buffer);
+                        position = 0;
+                        if (limit <= 0) {
+                            limit = 0;
+                            return length > 0 ? Arrays.copyOf(line, length) : null;
+                        }
+                    }
+                    if (skipNewLine) {
+                        skipNewLine = false;
+                        if (buffer[position] == '\n')
+                            position++;
+                        continue;
+                    }
+                    int end = position;
+                    while (end < limit && buffer[end] != '\n' && buffer[end] != '\r')
+                        end++;
+                    if (length + end - position > line.length)
+                        line = Arrays.copyOf(line, Math.max(line.length * 2,
+                                length + end - position));
+                    System.arraycopy(buffer, position, line, length, end - position);
+                    length += end - position;
+                    position = end;
+                    if (end < limit) {
+                        skipNewLine = buffer[end] == '\r';
+                        position++;
+                        return Arrays.copyOf(line, length);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,528 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * A read-only ClassIndex stored in a compact binary file that is memory-mapped rather than read.
+ * Repository, package and class names are kept in sorted string tables, and the
+ * class -> package -> repositories structure is kept in int arrays that refer to those tables,
+ * so lookups only touch the pages they need and opening the index costs almost nothing.
+ *
+ * The file is a sequence of sections followed by a trailer with the offset and the length of
+ * every section, a magic number and a version:
+ *   REPO_OFFSETS, REPO_BYTES   repository names, sorted by their UTF-8 bytes
+ *   PACK_OFFSETS, PACK_BYTES   package names, sorted the same way
+ *   CLASS_OFFSETS, CLASS_BYTES class names, sorted the same way
+ *   CLASS_ENTRIES  int[classes + 1], the range of ENTRY_* elements that belongs to every class
+ *   ENTRY_PACKS    int[entries], the package of every (class, package) entry
+ *   ENTRY_REPOS    int[entries + 1], the range of REPO_IDS elements that belongs to every entry
+ *   REPO_IDS       int[], the repositories of every entry
+ *   REPO_SIZES     int[repos], the number of classes defined in every repository
+ *   REPO_VALID     byte[repos], 1 iff the repository is in ClassIndex.getValidRepos()
+ *   REPO_PACK_START, REPO_PACKS  the sorted package ids defined in every repository
+ *   REPO_CLASS_START int[repos + 1], the range of REPO_CLASS_* elements of every repository
+ *   REPO_CLASSES     int[], the classes defined in every repository, sorted
+ *   REPO_CLASS_PACKS int[], the package every one of those classes is defined in
+ * The entries of a class and the repositories of an entry keep the iteration order of the
+ * ClassIndex they were converted from.
+ */
+public class BinaryClassIndex implements TypeIndex {
+    private static final int MAGIC = 0x43494458; // "CIDX"
+    private static final int VERSION = 2;
+    private static final int REPO_OFFSETS = 0, REPO_BYTES = 1, PACK_OFFSETS = 2, PACK_BYTES = 3,
+            CLASS_OFFSETS = 4, CLASS_BYTES = 5, CLASS_ENTRIES = 6, ENTRY_PACKS = 7,
+            ENTRY_REPOS = 8, REPO_IDS = 9, REPO_SIZES = 10, REPO_VALID = 11, REPO_PACK_START = 12,
+            REPO_PACKS = 13, REPO_CLASS_START = 14, REPO_CLASSES = 15, REPO_CLASS_PACKS = 16,
+            SECTIONS = 17;
+    private static final int TRAILER_SIZE = SECTIONS * 16 + 8;
+
+    private final StringTable repos;
+    private final StringTable packs;
+    private final StringTable classes;
+    private final IntBuffer classEntries;
+    private final IntBuffer entryPacks;
+    private final IntBuffer entryRepos;
+    private final IntBuffer repoIds;
+    private final IntBuffer repoSizes;
+    private final ByteBuffer repoValid;
+    private final IntBuffer repoPackStart;
+    private final IntBuffer repoPacks;
+    private final IntBuffer repoClassStart;
+    private final IntBuffer repoClasses;
+    private final IntBuffer repoClassPacks;
+
+    public static void main(String[] args) {
+        String jsonFile = args.length > 0 ? args[0] : "../data/classIndex.json";
+        String binaryFile = args.length > 1 ? args[1] : "../data/classIndex.bin";
+        ClassIndex classIndex = new ClassIndex();
+        System.out.println("Read " + jsonFile + "...");
+        classIndex.readJson(jsonFile);
+        System.out.println("Write " + binaryFile + "...");
+        try {
+            write(classIndex, binaryFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @param indexFile the json file of a class index
+     * @return the file of the binary version of that index
+     */
+    public static String fileFor(String indexFile) {
+        if (indexFile.endsWith(".json"))
+            indexFile = indexFile.substring(0, indexFile.length() - ".json".length());
+        return indexFile + ".bin";
+    }
+
+    private BinaryClassIndex(FileChannel channel) throws IOException {
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        channel.read(trailer, channel.size() - TRAILER_SIZE);
+        trailer.flip();
+        long[] offsets = new long[SECTIONS];
+        long[] lengths = new long[SECTIONS];
+        for (int i = 0; i < SECTIONS; i++) {
+            offsets[i] = trailer.getLong();
+            lengths[i] = trailer.getLong();
+        }
+        if (trailer.getInt() != MAGIC || trailer.getInt() != VERSION)
+            throw new IOException("Not a binary class index");
+
+        ByteBuffer[] sections = new ByteBuffer[SECTIONS];
+        for (int i = 0; i < SECTIONS; i++)
+            sections[i] = channel.map(FileChannel.MapMode.READ_ONLY, offsets[i], lengths[i]);
+        repos = new StringTable(sections[REPO_OFFSETS].asIntBuffer(), sections[REPO_BYTES]);
+        packs = new StringTable(sections[PACK_OFFSETS].asIntBuffer(), sections[PACK_BYTES]);
+        classes = new StringTable(sections[CLASS_OFFSETS].asIntBuffer(), sections[CLASS_BYTES]);
+        classEntries = sections[CLASS_ENTRIES].asIntBuffer();
+        entryPacks = sections[ENTRY_PACKS].asIntBuffer();
+        entryRepos = sections[ENTRY_REPOS].asIntBuffer();
+        repoIds = sections[REPO_IDS].asIntBuffer();
+        repoSizes = sections[REPO_SIZES].asIntBuffer();
+        repoValid = sections[REPO_VALID];
+        repoPackStart = sections[REPO_PACK_START].asIntBuffer();
+        repoPacks = sections[REPO_PACKS].asIntBuffer();
+        repoClassStart = sections[REPO_CLASS_START].asIntBuffer();
+        repoClasses = sections[REPO_CLASSES].asIntBuffer();
+        repoClassPacks = sections[REPO_CLASS_PACKS].asIntBuffer();
+    }
+
+    /**
+     * Memory-map a binary class index
+     * @param fileName a file written by write()
+     * @return
+     * @throws IOException
+     */
+    public static BinaryClassIndex open(String fileName) throws IOException {
+        // the mappings stay valid after the channel is closed
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            return new BinaryClassIndex(channel);
+        }
+    }
+
+    @Override
+    public boolean containsClass(String clazz) {
+        return classes.find(clazz) >= 0;
+    }
+
+    /**
+     * Looks the class up among the classes of the repository (REPO_CLASSES), so the cost does
+     * not depend on how many packages of other repositories define a class with the same name
+     */
+    @Override
+    public String findPackage(String clazz, Set<String> packages, String repo) {
+        int classId = classes.find(clazz);
+        int repoId = repos.find(repo);
+        if (classId < 0 || repoId < 0)
+            return null;
+        int end = repoClassStart.get(repoId + 1);
+        for (int i = firstRepoClass(repoId, classId);
+             i < end && repoClasses.get(i) == classId; i++) {
+            String pack = this.packs.get(repoClassPacks.get(i));
+            if (packages.contains(pack))
+                return pack;
+        }
+        return null;
+    }
+
+    @Override
+    public List<String> findPackages(String clazz, String repo) {
+        List<String> found = new ArrayList<>();
+        int classId = classes.find(clazz);
+        int repoId = repos.find(repo);
+        if (classId < 0 || repoId < 0)
+            return found;
+        int end = repoClassStart.get(repoId + 1);
+        for (int i = firstRepoClass(repoId, classId);
+             i < end && repoClasses.get(i) == classId; i++)
+            found.add(this.packs.get(repoClassPacks.get(i)));
+        return found;
+    }
+
+    /**
+     * @return the first occurrence of the class among the classes of the repository, or where
+     * it would be
+     */
+    private int firstRepoClass(int repoId, int classId) {
+        int low = repoClassStart.get(repoId);
+        int high = repoClassStart.get(repoId + 1);
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (repoClasses.get(middle) < classId)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    /**
+     * Check whether a repository defines a class in a package
+     * @param clazz a simple class name
+     * @param pack  a package name
+     * @param repo  a repository name
+     * @return the same as classToPackToRepo.get(clazz).get(pack).contains(repo), except that
+     * missing keys give false
+     */
+    public boolean contains(String clazz, String pack, String repo) {
+        int classId = classes.find(clazz);
+        int packId = packs.find(pack);
+        int repoId = repos.find(repo);
+        if (classId < 0 || packId < 0 || repoId < 0)
+            return false;
+        for (int entry = classEntries.get(classId); entry < classEntries.get(classId + 1); entry++)
+            if (entryPacks.get(entry) == packId)
+                return contains(repoIds, entryRepos.get(entry), entryRepos.get(entry + 1), repoId);
+        return false;
+    }
+
+    @Override
+    public boolean hasPackage(String repo, String pack) {
+        int repoId = repos.find(repo);
+        int packId = packs.find(pack);
+        if (repoId < 0 || packId < 0)
+            return false;
+        int low = repoPackStart.get(repoId);
+        int high = repoPackStart.get(repoId + 1) - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int value = repoPacks.get(middle);
+            if (value < packId)
+                low = middle + 1;
+            else if (value > packId)
+                high = middle - 1;
+            else
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public Set<String> getValidRepos() {
+        HashSet<String> result = new HashSet<>();
+        for (int repoId = 0; repoId < repos.size(); repoId++)
+            if (repoValid.get(repoId) != 0)
+                result.add(repos.get(repoId));
+        return result;
+    }
+
+    /**
+     * @return the number of classes defined in every repository (see ClassIndex.getRepoSizes)
+     */
+    public HashMap<String, Integer> getRepoSizes() {
+        HashMap<String, Integer> result = new HashMap<>();
+        for (int repoId = 0; repoId < repos.size(); repoId++)
+            result.put(repos.get(repoId), repoSizes.get(repoId));
+        return result;
+    }
+
+    private static boolean contains(IntBuffer buffer, int from, int to, int value) {
+        for (int i = from; i < to; i++)
+            if (buffer.get(i) == value)
+                return true;
+        return false;
+    }
+
+    /**
+     * Convert a ClassIndex to the binary format
+     * @param classIndex the index to convert
+     * @param fileName   the file to write to
+     * @throws IOException
+     */
+    public static void write(ClassIndex classIndex, String fileName) throws IOException {
+        HashSet<String> repoSet = new HashSet<>();
+        HashSet<String> packSet = new HashSet<>();
+        for (HashMap<String, Set<String>> clazz: classIndex.classToPackToRepo.values())
+            for (Map.Entry<String, Set<String>> pack: clazz.entrySet()) {
+                packSet.add(pack.getKey());
+                repoSet.addAll(pack.getValue());
+            }
+        String[] repoNames = sorted(repoSet);
+        String[] packNames = sorted(packSet);
+        String[] classNames = sorted(classIndex.classToPackToRepo.keySet());
+        HashMap<String, Integer> repoIds = ids(repoNames);
+        HashMap<String, Integer> packIds = ids(packNames);
+
+        long[] offsets = new long[SECTIONS];
+        long[] lengths = new long[SECTIONS];
+        try (SectionWriter out = new SectionWriter(fileName)) {
+            writeStrings(out, repoNames, REPO_OFFSETS, REPO_BYTES, offsets, lengths);
+            writeStrings(out, packNames, PACK_OFFSETS, PACK_BYTES, offsets, lengths);
+            writeStrings(out, classNames, CLASS_OFFSETS, CLASS_BYTES, offsets, lengths);
+
+            out.begin(CLASS_ENTRIES, offsets);
+            int entries = 0;
+            out.writeInt(entries);
+            for (String clazz: classNames) {
+                entries += classIndex.classToPackToRepo.get(clazz).size();
+                out.writeInt(entries);
+            }
+            out.end(CLASS_ENTRIES, offsets, lengths);
+
+            out.begin(ENTRY_PACKS, offsets);
+            for (String clazz: classNames)
+                for (String pack: classIndex.classToPackToRepo.get(clazz).keySet())
+                    out.writeInt(packIds.get(pack));
+            out.end(ENTRY_PACKS, offsets, lengths);
+
+            out.begin(ENTRY_REPOS, offsets);
+            int repoCount = 0;
+            out.writeInt(repoCount);
+            for (String clazz: classNames)
+                for (Set<String> repos: classIndex.classToPackToRepo.get(clazz).values()) {
+                    repoCount += repos.size();
+                    out.writeInt(repoCount);
+                }
+            out.end(ENTRY_REPOS, offsets, lengths);
+
+            out.begin(REPO_IDS, offsets);
+            for (String clazz: classNames)
+                for (Set<String> repos: classIndex.classToPackToRepo.get(clazz).values())
+                    for (String repo: repos)
+                        out.writeInt(repoIds.get(repo));
+            out.end(REPO_IDS, offsets, lengths);
+
+            HashMap<String, Integer> repoSizes = classIndex.getRepoSizes();
+            out.begin(REPO_SIZES, offsets);
+            for (String repo: repoNames)
+                out.writeInt(repoSizes.get(repo));
+            out.end(REPO_SIZES, offsets, lengths);
+
+            HashSet<String> validRepos = classIndex.getValidRepos();
+            out.begin(REPO_VALID, offsets);
+            for (String repo: repoNames)
+                out.write(validRepos.contains(repo) ? 1 : 0);
+            out.end(REPO_VALID, offsets, lengths);
+
+            HashMap<String, HashSet<String>> repoToPackage = classIndex.getRepoToPackage();
+            out.begin(REPO_PACK_START, offsets);
+            int packCount = 0;
+            out.writeInt(packCount);
+            for (String repo: repoNames) {
+                packCount += repoToPackage.get(repo).size();
+                out.writeInt(packCount);
+            }
+            out.end(REPO_PACK_START, offsets, lengths);
+
+            out.begin(REPO_PACKS, offsets);
+            for (String repo: repoNames) {
+                int[] repoPacks = new int[repoToPackage.get(repo).size()];
+                int i = 0;
+                for (String pack: repoToPackage.get(repo))
+                    repoPacks[i++] = packIds.get(pack);
+                Arrays.sort(repoPacks);
+                for (int pack: repoPacks)
+                    out.writeInt(pack);
+            }
+            out.end(REPO_PACKS, offsets, lengths);
+
+            // classes are visited in id order, so the classes of every repository come out
+            // sorted and the packages of a class keep the order of the ClassIndex
+            int[] classCount = new int[repoNames.length + 1];
+            for (String clazz: classNames)
+                for (Set<String> repos: classIndex.classToPackToRepo.get(clazz).values())
+                    for (String repo: repos)
+                        classCount[repoIds.get(repo) + 1]++;
+            for (int i = 0; i < repoNames.length; i++)
+                classCount[i + 1] += classCount[i];
+            int[] repoClasses = new int[classCount[repoNames.length]];
+            int[] repoClassPacks = new int[repoClasses.length];
+            int[] next = Arrays.copyOf(classCount, repoNames.length);
+            for (int classId = 0; classId < classNames.length; classId++)
+                for (Map.Entry<String, Set<String>> pack:
+                        classIndex.classToPackToRepo.get(classNames[classId]).entrySet())
+                    for (String repo: pack.getValue()) {
+                        int position = next[repoIds.get(repo)]++;
+                        repoClasses[position] = classId;
+                        repoClassPacks[position] = packIds.get(pack.getKey());
+                    }
+            out.begin(REPO_CLASS_START, offsets);
+            for (int count: classCount)
+                out.writeInt(count);
+            out.end(REPO_CLASS_START, offsets, lengths);
+            out.begin(REPO_CLASSES, offsets);
+            for (int classId: repoClasses)
+                out.writeInt(classId);
+            out.end(REPO_CLASSES, offsets, lengths);
+            out.begin(REPO_CLASS_PACKS, offsets);
+            for (int packId: repoClassPacks)
+                out.writeInt(packId);
+            out.end(REPO_CLASS_PACKS, offsets, lengths);
+
+            for (int i = 0; i < SECTIONS; i++) {
+                out.writeLong(offsets[i]);
+                out.writeLong(lengths[i]);
+            }
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+    }
+
+    private static void writeStrings(SectionWriter out, String[] strings, int offsetSection,
+                                     int bytesSection, long[] offsets, long[] lengths)
+            throws IOException {
+        out.begin(offsetSection, offsets);
+        int offset = 0;
+        out.writeInt(offset);
+        for (String string: strings) {
+            offset += string.getBytes(StandardCharsets.UTF_8).length;
+            out.writeInt(offset);
+        }
+        out.end(offsetSection, offsets, lengths);
+        out.begin(bytesSection, offsets);
+        for (String string: strings)
+            out.write(string.getBytes(StandardCharsets.UTF_8));
+        out.end(bytesSection, offsets, lengths);
+    }
+
+    /**
+     * Sort strings by their UTF-8 bytes, which is the order StringTable.find relies on
+     */
+    private static String[] sorted(Collection<String> strings) {
+        byte[][] encoded = new byte[strings.size()][];
+        int i = 0;
+        for (String string: strings)
+            encoded[i++] = string.getBytes(StandardCharsets.UTF_8);
+        Arrays.sort(encoded, BinaryClassIndex::compare);
+        String[] result = new String[encoded.length];
+        for (i = 0; i < encoded.length; i++)
+            result[i] = new String(encoded[i], StandardCharsets.UTF_8);
+        return result;
+    }
+
+    private static HashMap<String, Integer> ids(String[] strings) {
+        HashMap<String, Integer> ids = new HashMap<>();
+        for (int i = 0; i < strings.length; i++)
+            ids.put(strings[i], i);
+        return ids;
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+        for (int i = 0; i < Math.min(a.length, b.length); i++)
+            if (a[i] != b[i])
+                return (a[i] & 0xff) - (b[i] & 0xff);
+        return a.length - b.length;
+    }
+
+    /**
+     * A sorted table of strings stored as an array of offsets into a block of UTF-8 bytes
+     */
+    static class StringTable {
+        private final IntBuffer offsets;
+        private final ByteBuffer bytes;
+
+        StringTable(IntBuffer offsets, ByteBuffer bytes) {
+            this.offsets = offsets;
+            this.bytes = bytes;
+        }
+
+        int size() {
+            return offsets.limit() - 1;
+        }
+
+        String get(int id) {
+            byte[] string = new byte[offsets.get(id + 1) - offsets.get(id)];
+            for (int i = 0; i < string.length; i++)
+                string[i] = bytes.get(offsets.get(id) + i);
+            return new String(string, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * @return the id of the string, or -1 if it is not in the table
+         */
+        int find(String string) {
+            byte[] key = string.getBytes(StandardCharsets.UTF_8);
+            int low = 0;
+            int high = size() - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int comparison = compareAt(middle, key);
+                if (comparison < 0)
+                    low = middle + 1;
+                else if (comparison > 0)
+                    high = middle - 1;
+                else
+                    return middle;
+            }
+            return -1;
+        }
+
+        private int compareAt(int id, byte[] key) {
+            int start = offsets.get(id);
+            int length = offsets.get(id + 1) - start;
+            for (int i = 0; i < Math.min(length, key.length); i++) {
+                byte b = bytes.get(start + i);
+                if (b != key[i])
+                    return (b & 0xff) - (key[i] & 0xff);
+            }
+            return length - key.length;
+        }
+    }
+
+    /**
+     * A buffered output stream that keeps track of where each section starts and ends
+     */
+    static class SectionWriter extends DataOutputStream {
+
+        SectionWriter(String fileName) throws IOException {
+            super(new CountingOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16)));
+        }
+
+        void begin(int section, long[] offsets) {
+            offsets[section] = ((CountingOutputStream) out).count;
+        }
+
+        void end(int section, long[] offsets, long[] lengths) {
+            lengths[section] = ((CountingOutputStream) out).count - offsets[section];
+        }
+    }
+
+    /**
+     * Counts the bytes written through it (DataOutputStream.size() overflows at 2GB)
+     */
+    static class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * A binary format for the records of Parser (see Parser.DataCollector), which is smaller than
+ * json lines and faster to read (see python/parsed_reader.py): strings are not escaped, the keys
+ * of the json objects are not written at all, and type names (the classes and the types of
+ * parameters and return values) are written once per segment and then referred to by number.
+ * Parser writes this format to output files that end in .rec (or .rec.gz).
+ *
+ * A file is a sequence of segments, so that files can be concatenated and appended to (see
+ * JobManifest) as json lines can. A segment starts with a header, the int 0 followed by MAGIC,
+ * and the numbers of the type names start over in every segment. All ints are 4 bytes big-endian,
+ * as written by DataOutputStream. A record is its length in bytes (which is not 0), the number of
+ * its ints, the ints and the UTF-8 bytes of its strings, one after the other. The lengths of the
+ * strings are in code points (the characters of a Python string rather than the chars of a Java
+ * one), so a reader can decode all strings of a record at once and then cut them apart. The ints
+ * are, in this order:
+ *   record: the length of the repo, the number of classes, then every class
+ *   class:  the class name (a type name), the number of methods, then every method
+ *   method: the lengths of the name, the docstring and the source, the return type (a type
+ *           name), the length of the return doc, the number of parameters, then every parameter
+ *   param:  the length of the name, the type (a type name) and the length of the doc
+ * A type name is its number and, if it is the next number of the segment (i.e. the name is new),
+ * the length of the name. A doc of length 0 is not in the record (docs are only there if they
+ * are not empty), but an empty docstring is.
+ */
+public class BinaryRecords {
+    static final byte[] MAGIC = {'T', 'P', 'R', '1'};
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.out.println("Usage: BinaryRecords jsonLinesFile recordsFile");
+            return;
+        }
+        JSONParser parser = new JSONParser();
+        long records = 0;
+        long start = System.nanoTime();
+        try (Stream<String> lines = DataFiles.lines(args[0]);
+             Writer writer = new Writer(DataFiles.openOutput(args[1]))) {
+            for (Iterator<String> iterator = lines.iterator(); iterator.hasNext(); ) {
+                JSONObject record = Parser.parseJSON(parser, iterator.next());
+                if (record == null)
+                    continue;
+                writer.write(record);
+                records++;
+            }
+        } catch (IOException | UncheckedIOException e) {
+            e.printStackTrace();
+            return;
+        }
+        System.out.printf("Converted %d records in %.1f s: %d bytes of json lines, %d bytes of " +
+                        "records%n", records, (System.nanoTime() - start) / 1e9,
+                new File(args[0]).length(), new File(args[1]).length());
+    }
+
+    /**
+     * @param fileName
+     * @return true iff records are written to the file in this format rather than as json lines
+     */
+    public static boolean isBinary(String fileName) {
+        return fileName.endsWith(".rec") || fileName.endsWith(".rec.gz");
+    }
+
+    /**
+     * @param fileName the name of a file of json lines
+     * @return the name of the same file in this format (x.json -> x.rec, x.json.gz -> x.rec.gz)
+     */
+    public static String fileFor(String fileName) {
+        boolean compressed = DataFiles.isCompressed(fileName);
+        if (compressed)
+            fileName = fileName.substring(0, fileName.length() - ".gz".length());
+        if (fileName.endsWith(".json"))
+            fileName = fileName.substring(0, fileName.length() - ".json".length());
+        return fileName + ".rec" + (compressed ? ".gz" : "");
+    }
+
+    /**
+     * Writes records as one segment
+     */
+    public static class Writer implements Closeable, Flushable {
+        private final DataOutputStream out;
+        private final HashMap<String, Integer> types = new HashMap<>();
+        private int[] ints = new int[256];
+        private int intCount;
+        private final ByteArrayOutputStream strings = new ByteArrayOutputStream(1 << 12);
+
+        /**
+         * Start a segment
+         * @param out where to write it, e.g. DataFiles.openOutput(fileName, append)
+         * @throws IOException
+         */
+        public Writer(OutputStream out) throws IOException {
+            this.out = new DataOutputStream(out);
+            this.out.writeInt(0);
+            this.out.write(MAGIC);
+        }
+
+        /**
+         * Write a record
+         * @param record {"repo":..., "classes":{...}}, as extracted by Parser.extractData
+         * @throws IOException
+         */
+        public void write(JSONObject record) throws IOException {
+            intCount = 0;
+            strings.reset();
+            JSONObject classes = (JSONObject) record.get("classes");
+            string((String) record.get("repo"));
+            add(classes.size());
+            for (Object clazz: classes.entrySet()) {
+                Map.Entry<?, ?> classEntry = (Map.Entry<?, ?>) clazz;
+                JSONObject methods = (JSONObject) classEntry.getValue();
+                type((String) classEntry.getKey());
+                add(methods.size());
+                for (Object method: methods.entrySet()) {
+                    Map.Entry<?, ?> methodEntry = (Map.Entry<?, ?>) method;
+                    JSONObject methodObject = (JSONObject) methodEntry.getValue();
+                    JSONObject returnObject = (JSONObject) methodObject.get("return");
+                    JSONObject params = (JSONObject) methodObject.get("params");
+                    string((String) methodEntry.getKey());
+                    string((String) methodObject.get("docstring"));
+                    string((String) methodObject.get("source"));
+                    type((String) returnObject.get("type"));
+                    string((String) returnObject.get("doc"));
+                    add(params.size());
+                    for (Object param: params.entrySet()) {
+                        Map.Entry<?, ?> paramEntry = (Map.Entry<?, ?>) param;
+                        JSONObject paramObject = (JSONObject) paramEntry.getValue();
+                        string((String) paramEntry.getKey());
+                        type((String) paramObject.get("type"));
+                        string((String) paramObject.get("doc"));
+                    }
+                }
+            }
+            out.writeInt(4 + 4 * intCount + strings.size());
+            out.writeInt(intCount);
+            for (int i = 0; i < intCount; i++)
+                out.writeInt(ints[i]);
+            strings.writeTo(out);
+        }
+
+        private void add(int value) {
+            if (intCount == ints.length)
+                ints = Arrays.copyOf(ints, 2 * intCount);
+            ints[intCount++] = value;
+        }
+
+        /**
+         * Add a string, where null is the same as ""
+         */
+        private void string(String value) {
+            if (value == null || value.isEmpty()) {
+                add(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            add(value.codePointCount(0, value.length()));
+            strings.write(bytes, 0, bytes.length);
+        }
+
+        private void type(String name) {
+            Integer number = types.get(name);
+            if (number != null) {
+                add(number);
+                return;
+            }
+            add(types.size());
+            types.put(name, types.size());
+            string(name);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -5,23 +5,41 @@ import com.github.javaparser.ast.body.ClassOrInterfaceDeclaration;
 import com.github.javaparser.ast.visitor.VoidVisitorAdapter;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.ContentHandler;
 import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
 
 import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * ClassIndex can store info about all the classes defined in the BigQuery dataset and contains
  * methods that allow gathering this info
  */
-public class ClassIndex {
+public class ClassIndex implements TypeIndex {
     HashMap<String, HashMap<String, Set<String>>> classToPackToRepo;
     // maps from a simple class name and a package name to a list of repositories in which a class
     // with this name is defined in a package with this name
+    // derived from the index when first needed, and then kept up to date by add and removeRepos
+    private HashMap<String, HashSet<String>> repoToPackage; // computed on the first hasPackage call
+    private HashMap<String, Integer> repoSizes;
+    private HashSet<String> validRepos; // null when it has to be computed again
+    private HashSet<String> keptRepos; // the repos kept for some class and package by getValidRepos
+    static final PipelineMetrics metrics = PipelineMetrics.register("ClassIndex");
+    // the classes declared in files by their content, null if there is no cache
+    static ParseCache<ParsedClasses> parseCache = ParseCache.fromProperties(metrics);
 
     public ClassIndex() {
         classToPackToRepo = new HashMap<>();
@@ -30,20 +48,55 @@ public class ClassIndex {
     public static void main(String[] args) {
         ClassIndex classIndex;
         String jsonFileDir = "/Volumes/My Passport/import_prediction/data/GitHubOriginal";
-        for (String fileName: new File(jsonFileDir).list()) {
-            classIndex = new ClassIndex();
-            classIndex.addBigQueryData(jsonFileDir + "/" + fileName);
-            saveJson(classIndex.toJson(), "../data/indices/" + fileName + ".json");
+        int workers = Integer.getInteger("workers", 1); // number of parser threads per dump file
+        // the shards of dump files that are done in an earlier run are kept (see JobManifest).
+        // A dump file is indexed in memory, so an interrupted one starts over
+        try {
+            JobManifest manifest = JobManifest.open("../data/indices/manifest.json");
+            for (String fileName: new File(jsonFileDir).list()) {
+                JobManifest.Job job = manifest.start(jsonFileDir + "/" + fileName,
+                        "../data/indices/" + fileName + ".shard", null);
+                if (job == null) {
+                    System.out.println("Skipping " + fileName + ", which is done");
+                    continue;
+                }
+                classIndex = new ClassIndex();
+                try (ParseLimits limits = ParseLimits.fromProperties(
+                        "../data/indices/" + fileName + ".quarantine")) {
+                    // the job is left unfinished, so that the next run starts it over
+                    if (!classIndex.addBigQueryData(jsonFileDir + "/" + fileName, workers,
+                            limits))
+                        throw new IOException("Could not read " + fileName);
+                }
+                IndexShards.write(classIndex, job.partialFile().getPath());
+                job.done();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
         }
 
-        classIndex = new ClassIndex();
+        // merged without reading all indices into one, with the repository statistics, so that
+        // Parser does not have to compute them on every run
+        File index = new File("../data/classIndex.json");
+        boolean changed = !index.exists();
+        List<String> shards = new ArrayList<>();
         for (String fileName: new File(jsonFileDir).list()) {
-            System.out.println("Read " + fileName + "...");
-            classIndex.fromJson(parseJSON(new JSONParser(),"../data/indices/" + fileName + ".json", true));
+            shards.add("../data/indices/" + fileName + ".shard");
+            changed |= new File(shards.get(shards.size() - 1)).lastModified() >
+                    index.lastModified();
+        }
+        if (!changed) {
+            System.out.println("The index is up to date");
+            return;
         }
-
         System.out.println("Saving all");
-        saveJson(classIndex.toJson(), "../data/classIndex.json");
+        try {
+            IndexShards.merge(shards, "../data/classIndex.json");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        metrics.writeSummary("../data/indices/metrics.json");
     }
 
 
@@ -52,6 +105,7 @@ public class ClassIndex {
      * @param json a JSONObject
      */
     public void fromJson(JSONObject json) {
+        forgetDerived();
         for (Object clazz_key: json.keySet()) {
             String clazz = (String) clazz_key;
             classToPackToRepo.putIfAbsent(clazz, new HashMap<>());
@@ -83,13 +137,154 @@ public class ClassIndex {
         return json;
     }
 
+    /**
+     * Write the index to a file in the same format as saveJson(toJson(), fileName), but without
+     * building an intermediate JSONObject: the map is walked and written out entry by entry
+     * @param fileName
+     * @return false if the file could not be written
+     */
+    public boolean writeJson(String fileName) {
+        long start = System.nanoTime();
+        boolean written = false;
+        try (Writer file = DataFiles.newWriter(fileName, StandardCharsets.UTF_8)) {
+            char separator = '{';
+            for (String clazz: classToPackToRepo.keySet()) {
+                file.write(separator);
+                separator = ',';
+                writeClass(file, clazz, classToPackToRepo.get(clazz));
+            }
+            file.write(separator == '{' ? "{}" : "}");
+            written = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        metrics.time(PipelineMetrics.Stage.SERIALIZE, start);
+        return written;
+    }
+
+    /**
+     * Write the "class":{"package":["repo",...],...} entry of a class, as writeJson does
+     * @param file
+     * @param clazz
+     * @param packages the repositories of every package of the class
+     * @throws IOException
+     */
+    static void writeClass(Writer file, String clazz,
+                           Map<String, ? extends Collection<String>> packages) throws IOException {
+        writeString(file, clazz);
+        file.write(':');
+        char packSeparator = '{';
+        for (Map.Entry<String, ? extends Collection<String>> pack: packages.entrySet()) {
+            file.write(packSeparator);
+            packSeparator = ',';
+            writeString(file, pack.getKey());
+            file.write(':');
+            char repoSeparator = '[';
+            for (String repo : pack.getValue()) {
+                file.write(repoSeparator);
+                repoSeparator = ',';
+                writeString(file, repo);
+            }
+            file.write(repoSeparator == '[' ? "[]" : "]");
+        }
+        file.write(packSeparator == '{' ? "{}" : "}");
+    }
+
+    private static void writeString(Writer file, String string) throws IOException {
+        file.write('"');
+        file.write(JSONValue.escape(string));
+        file.write('"');
+    }
+
+    /**
+     * Add the data stored in a json file (as written by writeJson or saveJson) to the index.
+     * Unlike fromJson(parseJSON(...)), the file is read as a stream of tokens, so no JSONObject
+     * tree is built for it
+     * @param fileName
+     * @return false if the file could not be read or is malformed, in which case the index has
+     * only some of its classes
+     */
+    public boolean readJson(String fileName) {
+        try (Reader file = DataFiles.newReader(fileName, StandardCharsets.UTF_8)) {
+            forgetDerived();
+            new JSONParser().parse(file, new IndexContentHandler());
+            return true;
+        } catch (IOException | ParseException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * A json-simple content handler that adds class -> package -> repositories entries to the
+     * index as soon as they are read
+     */
+    class IndexContentHandler implements ContentHandler {
+        private int depth = 0; // how many json objects are currently open
+        private HashMap<String, Set<String>> clazz; // packages of the class being read
+        private Set<String> repos; // the set to which the repositories being read are added
+
+        @Override
+        public void startJSON() {}
+
+        @Override
+        public void endJSON() {}
+
+        @Override
+        public boolean startObject() {
+            depth++;
+            return true;
+        }
+
+        @Override
+        public boolean endObject() {
+            depth--;
+            return true;
+        }
+
+        @Override
+        public boolean startObjectEntry(String key) {
+            // putIfAbsent rather than computeIfAbsent, since the latter inserts new keys at the
+            // head of a hash bucket and would change the iteration order of the maps
+            if (depth == 1) {
+                classToPackToRepo.putIfAbsent(key, new HashMap<>());
+                clazz = classToPackToRepo.get(key);
+            } else if (depth == 2) {
+                clazz.putIfAbsent(key, new HashSet<>());
+                repos = clazz.get(key);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean endObjectEntry() {
+            return true;
+        }
+
+        @Override
+        public boolean startArray() {
+            return true;
+        }
+
+        @Override
+        public boolean endArray() {
+            return true;
+        }
+
+        @Override
+        public boolean primitive(Object value) {
+            repos.add((String) value);
+            return true;
+        }
+    }
+
     /**
      * Write a json Object to a file
      * @param jsonObject
      * @param fileName
      */
     public static void saveJson(JSONObject jsonObject, String fileName) {
-        try (FileWriter file = new FileWriter(fileName)) {
+        try (Writer file = DataFiles.newWriter(fileName, Charset.defaultCharset())) {
             String toWrite = "{";
             for (Object key: jsonObject.keySet()) {
                 file.write(toWrite);
@@ -112,7 +307,9 @@ public class ClassIndex {
     public static JSONObject parseJSON(JSONParser jsonParser, String line, boolean isFileName) {
         try {
             if (isFileName)
-                return (JSONObject) jsonParser.parse(new FileReader(new File(line)));
+                try (Reader file = DataFiles.newReader(line, Charset.defaultCharset())) {
+                    return (JSONObject) jsonParser.parse(file);
+                }
             return (JSONObject) jsonParser.parse(line);
         } catch (Exception e) {
             System.out.println(e.getStackTrace());
@@ -140,45 +337,90 @@ public class ClassIndex {
     /**
      * Get a set of repositories without duplicates (i.e. such that each fully-qualified class
      * name definition is unique to some repository) that also have a package declaration in
-     * every file.
-     * @return
+     * every file. Computed on the first call, and then kept up to date by add and removeRepos
+     * where possible
+     * @return a copy
      */
     public HashSet<String> getValidRepos() {
-        HashMap<String, Integer> repoSizes = getRepoSizes();
+        if (validRepos == null) {
+            if (repoSizes == null)
+                repoSizes = computeRepoSizes();
+            keptRepos = new HashSet<>();
+            validRepos = computeValidRepos(repoSizes, keptRepos);
+        }
+        return new HashSet<>(validRepos);
+    }
+
+    /**
+     * getValidRepos without the repositories computed before
+     * @param repoSizes see getRepoSizes
+     * @param keptRepos to which the repositories kept for some class and package are added
+     * @return
+     */
+    HashSet<String> computeValidRepos(HashMap<String, Integer> repoSizes,
+                                      HashSet<String> keptRepos) {
         HashSet<String> result = new HashSet<>();
         for (String repo: repoSizes.keySet())
             result.add(repo);
 
         for (String clazz: classToPackToRepo.keySet())
-            for (String pack : classToPackToRepo.get(clazz).keySet()) {
-                if (pack.equals("")) {
-                    for (String repo : classToPackToRepo.get(clazz).get(pack))
-                        result.remove(repo);
-                    continue;
-                }
-                int maxSize = 0; // the size of the largest repo in which this class is defined
-                String maxRepo = ""; // the name of that repo
-                for (String repo : classToPackToRepo.get(clazz).get(pack))
-                    if (result.contains(repo)) {
-                        if (repoSizes.get(repo) > maxSize) {
-                            result.remove(maxRepo);
-                            maxSize = repoSizes.get(repo);
-                            maxRepo = repo;
-                        } else {
-                            result.remove(repo);
-                        }
-                    }
-            }
+            removeInvalidRepos(classToPackToRepo.get(clazz), repoSizes, result, keptRepos);
 
         return result;
     }
 
+    /**
+     * The step of getValidRepos for one class: remove the repositories that define the class
+     * without a package, and all but the largest of the repositories that define it in the same
+     * package. Ties are broken by iteration order, so the classes have to be passed in the
+     * iteration order of the index for the result to be the same
+     * @param packages   the repositories of every package of the class
+     * @param repoSizes  see getRepoSizes
+     * @param validRepos the repositories that are still valid
+     * @param keptRepos  to which the repositories kept for a package are added, or null
+     */
+    static void removeInvalidRepos(Map<String, ? extends Collection<String>> packages,
+                                   HashMap<String, Integer> repoSizes,
+                                   HashSet<String> validRepos, HashSet<String> keptRepos) {
+        for (Map.Entry<String, ? extends Collection<String>> pack: packages.entrySet()) {
+            if (pack.getKey().equals("")) {
+                for (String repo : pack.getValue())
+                    validRepos.remove(repo);
+                continue;
+            }
+            int maxSize = 0; // the size of the largest repo in which this class is defined
+            String maxRepo = ""; // the name of that repo
+            for (String repo : pack.getValue())
+                if (validRepos.contains(repo)) {
+                    if (repoSizes.get(repo) > maxSize) {
+                        validRepos.remove(maxRepo);
+                        maxSize = repoSizes.get(repo);
+                        maxRepo = repo;
+                    } else {
+                        validRepos.remove(repo);
+                    }
+                }
+            if (keptRepos != null && !maxRepo.isEmpty())
+                keptRepos.add(maxRepo);
+        }
+    }
+
     /**
      * Get a dictionary that for each repository specifies the number of classes defined in that
-     * repository
-     * @return
+     * repository. Computed on the first call, and then kept up to date by add and removeRepos
+     * @return a copy
      */
     public HashMap<String, Integer> getRepoSizes() {
+        if (repoSizes == null)
+            repoSizes = computeRepoSizes();
+        return new HashMap<>(repoSizes);
+    }
+
+    /**
+     * getRepoSizes without the sizes computed before
+     * @return
+     */
+    HashMap<String, Integer> computeRepoSizes() {
         HashMap<String, Integer> repoSizes = new HashMap<>();
         for (HashMap<String, Set<String>> clazz: classToPackToRepo.values())
             for (Set<String> packages: clazz.values())
@@ -187,69 +429,422 @@ public class ClassIndex {
         return repoSizes;
     }
 
+    /**
+     * Forget the structures derived from the index, so that they are computed again when needed
+     */
+    private void forgetDerived() {
+        repoToPackage = null;
+        repoSizes = null;
+        validRepos = null;
+        keptRepos = null;
+    }
+
+    /**
+     * @param size the number of keys added to a HashMap (or HashSet) created with the default
+     *             settings
+     * @return the number of buckets of that HashMap
+     */
+    static int capacity(int size) {
+        int capacity = 16;
+        while (size > capacity / 4 * 3 && capacity < 1 << 30)
+            capacity <<= 1;
+        return capacity;
+    }
+
+    @Override
+    public boolean containsClass(String clazz) {
+        return classToPackToRepo.containsKey(clazz);
+    }
+
+    @Override
+    public String findPackage(String clazz, Set<String> packages, String repo) {
+        HashMap<String, Set<String>> packToRepo = classToPackToRepo.get(clazz);
+        if (packToRepo == null)
+            return null;
+        // a name like Node is defined in thousands of packages, but a file has only a few
+        // wildcard imports, so look those up instead of going through all the packages
+        String found = null;
+        for (String pack: packages) {
+            Set<String> repos = packToRepo.get(pack);
+            if (repos != null && repos.contains(repo)) {
+                if (found != null)
+                    return firstPackage(packToRepo, packages, repo);
+                found = pack;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * The first package in the iteration order of the index that is one of the given packages
+     * and is defined in the given repository. Used when there are several of those, so that the
+     * answer does not depend on the order of the imports
+     */
+    private static String firstPackage(HashMap<String, Set<String>> packToRepo,
+                                       Set<String> packages, String repo) {
+        for (Map.Entry<String, Set<String>> pack: packToRepo.entrySet())
+            if (packages.contains(pack.getKey()) && pack.getValue().contains(repo))
+                return pack.getKey();
+        return null;
+    }
+
+    @Override
+    public List<String> findPackages(String clazz, String repo) {
+        List<String> found = new ArrayList<>();
+        HashMap<String, Set<String>> packToRepo = classToPackToRepo.get(clazz);
+        if (packToRepo != null)
+            for (Map.Entry<String, Set<String>> pack: packToRepo.entrySet())
+                if (pack.getValue().contains(repo))
+                    found.add(pack.getKey());
+        return found;
+    }
+
+    @Override
+    public boolean hasPackage(String repo, String pack) {
+        if (repoToPackage == null)
+            repoToPackage = getRepoToPackage();
+        return repoToPackage.containsKey(repo) && repoToPackage.get(repo).contains(pack);
+    }
+
     /** Add all information about classes that can be gathered from one of the files downloaded
      * from BigQuery to this RepositoryIndex
      * @param jsonFileName the name of the file with code from BigQuery
      */
     public void addBigQueryData(String jsonFileName) {
-        JSONParser jsonParser = new JSONParser();
-        JavaParser javaParser = new JavaParser();
+        addBigQueryData(jsonFileName, ParseLimits.NONE);
+    }
+
+    /** Same as addBigQueryData(jsonFileName), but files that exceed the limits are quarantined
+     * instead of parsed
+     * @param jsonFileName the name of the file with code from BigQuery
+     * @param limits       the limits on parsing every file
+     * @return false if the file could not be read completely, in which case only the classes of
+     * some of its lines were added
+     */
+    public boolean addBigQueryData(String jsonFileName, ParseLimits limits) {
         System.out.println("Processing " + jsonFileName + "...");
-        try {
-            Files.lines(Paths.get(jsonFileName))
-                    .map(file -> parseJSON(jsonParser, file, false))
-                    .forEach(file -> extractData(file, javaParser));// get the list of fi
-        } catch (IOException e) {
+        boolean done = false;
+        try (Stream<String> lines = metrics.timeReads(DataFiles.lines(jsonFileName))) {
+            extractDeclarations(lines, 1, limits, this::add);
+            done = true;
+        } catch (IOException | UncheckedIOException e) {
             e.printStackTrace();
         }
+        printQuarantined(limits);
+        return done;
+    }
+
+    /** Same as addBigQueryData(jsonFileName), but the lines of the file are parsed by several
+     * worker threads, each with its own JavaParser. The class declarations found in each line are
+     * added to the index in the order of the lines in the file, so the result is identical to the
+     * one produced sequentially
+     * @param jsonFileName the name of the file with code from BigQuery
+     * @param workers      the number of worker threads
+     */
+    public void addBigQueryData(String jsonFileName, int workers) {
+        addBigQueryData(jsonFileName, workers, ParseLimits.NONE);
+    }
+
+    /** Same as addBigQueryData(jsonFileName, limits), with several worker threads
+     * @param jsonFileName the name of the file with code from BigQuery
+     * @param workers      the number of worker threads
+     * @param limits       the limits on parsing every file
+     * @return false if the file could not be read completely (see addBigQueryData(jsonFileName,
+     * limits))
+     */
+    public boolean addBigQueryData(String jsonFileName, int workers, ParseLimits limits) {
+        if (workers <= 1)
+            return addBigQueryData(jsonFileName, limits);
+        System.out.println("Processing " + jsonFileName + " with " + workers + " workers...");
+        boolean done = false;
+        try (Stream<String> lines = metrics.timeReads(DataFiles.lines(jsonFileName))) {
+            extractDeclarations(lines, workers, limits, this::add);
+            done = true;
+        } catch (IOException | UncheckedIOException e) {
+            e.printStackTrace();
+        }
+        printQuarantined(limits);
+        return done;
+    }
+
+    /**
+     * Find the class declarations in lines of a file downloaded from BigQuery, without adding
+     * them to the index (see Coordinator)
+     * @param lines    the lines
+     * @param workers  the number of worker threads
+     * @param limits   the limits on parsing every file
+     * @param consumer receives the declarations in the order of the lines
+     */
+    void extractDeclarations(Stream<String> lines, int workers, ParseLimits limits,
+                             Consumer<String[]> consumer) {
+        if (workers <= 1) {
+            Parsers parsers = new Parsers(new JSONParser(), new JavaParser());
+            lines.forEach(line -> extractDeclarations(line, parsers, limits).forEach(consumer));
+        } else
+            ParallelLines.process(lines, workers,
+                    () -> new Parsers(new JSONParser(), new JavaParser()),
+                    (parsers, line) -> extractDeclarations(line, parsers, limits),
+                    declarations -> declarations.forEach(consumer));
+    }
+
+    private static void printQuarantined(ParseLimits limits) {
+        if (limits != ParseLimits.NONE)
+            System.out.println("Quarantined " + limits.quarantined.sum() +
+                    " files that exceeded the parse limits");
     }
 
     public void extractData(JSONObject file, JavaParser parser) {
-        if (file.get("content") == null) {  // if the file contains no code, do not attempt parsing
-            System.out.println("File is empty");
+        extractDeclarations(file, parser).forEach(this::add);
+    }
+
+    /**
+     * Record that a class is defined in a given package of a given repository
+     * @param declaration an array of the class name, the package name and the repository name
+     */
+    public void add(String[] declaration) {
+        classToPackToRepo.putIfAbsent(declaration[0], new HashMap<>());
+        classToPackToRepo.get(declaration[0]).putIfAbsent(declaration[1], new HashSet<>());
+        if (!classToPackToRepo.get(declaration[0]).get(declaration[1]).add(declaration[2]))
             return;
+        if (repoToPackage != null) {
+            repoToPackage.putIfAbsent(declaration[2], new HashSet<>());
+            repoToPackage.get(declaration[2]).add(declaration[1]);
         }
+        if (repoSizes != null)
+            repoSizes.put(declaration[2], repoSizes.getOrDefault(declaration[2], 0) + 1);
+        validRepos = null; // a new class can change which repositories are kept for any other
+    }
 
-        CompilationUnit ast;
-        try {
-            ast = parser.parse((String) file.get("content"));
-        } catch (Exception e) {
-            System.out.println("Bad Java parse error"); // if parsing failed, return an empty object
-            return;
-        } catch (AssertionError e) {
-            System.out.println("Very bad Java parse error");
+    /**
+     * Remove all classes of some repositories from the index, e.g. to drop repositories that
+     * turned out to be broken. The structures derived from the index are updated rather than
+     * computed again: the sizes and packages of the repositories always, and the valid
+     * repositories if the removed ones are not valid and were not kept for any class and package
+     * by getValidRepos. Such repositories did not change which other repositories were kept.
+     *
+     * The maps and sets of the index are left as readJson would build them from the file that
+     * writeJson writes. A HashMap does not shrink when keys are removed, so a map that would have
+     * fewer buckets when read back is built again, since it would be iterated over in another
+     * order (which decides getValidRepos and findPackage in case of ties)
+     * @param repos the names of the repositories
+     */
+    public void removeRepos(Set<String> repos) {
+        if (repoToPackage == null)
+            repoToPackage = getRepoToPackage();
+        HashSet<String> packages = new HashSet<>(); // the packages with classes of the repos
+        for (String repo: repos)
+            if (repoToPackage.containsKey(repo))
+                packages.addAll(repoToPackage.get(repo));
+        if (packages.isEmpty())
             return;
+
+        boolean reordered = false; // whether some map or set was built again
+        int classCount = classToPackToRepo.size();
+        Iterator<Map.Entry<String, HashMap<String, Set<String>>>> classes =
+                classToPackToRepo.entrySet().iterator();
+        while (classes.hasNext()) {
+            Map.Entry<String, HashMap<String, Set<String>>> clazz = classes.next();
+            HashMap<String, Set<String>> packToRepo = clazz.getValue();
+            int packCount = packToRepo.size();
+            for (String pack: packages) {
+                Set<String> packRepos = packToRepo.get(pack);
+                int repoCount = packRepos == null ? 0 : packRepos.size();
+                if (repoCount == 0 || !packRepos.removeAll(repos))
+                    continue;
+                if (packRepos.isEmpty()) {
+                    packToRepo.remove(pack);
+                } else if (capacity(packRepos.size()) < capacity(repoCount)) {
+                    packToRepo.put(pack, rebuilt(packRepos, new HashSet<>()));
+                    reordered = true;
+                }
+            }
+            if (packToRepo.isEmpty()) {
+                classes.remove();
+            } else if (capacity(packToRepo.size()) < capacity(packCount)) {
+                clazz.setValue(rebuilt(packToRepo, new HashMap<>()));
+                reordered = true;
+            }
+        }
+        if (capacity(classToPackToRepo.size()) < capacity(classCount)) {
+            classToPackToRepo = rebuilt(classToPackToRepo, new HashMap<>());
+            reordered = true;
+        }
+
+        for (String repo: repos) {
+            repoToPackage.remove(repo);
+            if (repoSizes != null)
+                repoSizes.remove(repo);
+            if (validRepos != null && (validRepos.contains(repo) || keptRepos.contains(repo)))
+                validRepos = null;
+        }
+        if (reordered)
+            validRepos = null;
+    }
+
+    /**
+     * Add the elements of a set to an empty one in iteration order, as readJson would
+     */
+    private static <T extends Set<String>> T rebuilt(Set<String> set, T empty) {
+        for (String element: set)
+            empty.add(element);
+        return empty;
+    }
+
+    /**
+     * Put the entries of a map into an empty one in iteration order, as readJson would (putAll
+     * would size the new map for all entries at once)
+     */
+    private static <V, T extends HashMap<String, V>> T rebuilt(Map<String, V> map, T empty) {
+        for (Map.Entry<String, V> entry: map.entrySet())
+            empty.put(entry.getKey(), entry.getValue());
+        return empty;
+    }
+
+    /**
+     * Get the list of all classes declared in one of the files downloaded from BigQuery
+     * @param file   the file as a json object
+     * @param parser the JavaParser to use
+     * @return a list of {class name, package name, repository name} arrays in the order in which
+     * the classes are declared in the file
+     */
+    public List<String[]> extractDeclarations(JSONObject file, JavaParser parser) {
+        return extractDeclarations(file, parser, ParseLimits.NONE);
+    }
+
+    /**
+     * Decode a line of a file downloaded from BigQuery and get the list of all classes declared
+     * in it (see extractDeclarations(file, parser, limits))
+     * @param line    the line
+     * @param parsers the parsers to use
+     * @param limits  the limits on parsing the file
+     * @return
+     */
+    List<String[]> extractDeclarations(String line, Parsers parsers, ParseLimits limits) {
+        long start = System.nanoTime();
+        JSONObject file = parseJSON(parsers.jsonParser, line, false);
+        metrics.time(PipelineMetrics.Stage.DECODE, start);
+        List<String[]> declarations = extractDeclarations(file, parsers.javaParser, limits);
+        metrics.fileDone(start);
+        return declarations;
+    }
+
+    /**
+     * Same as extractDeclarations(file, parser), but a file that exceeds the limits is
+     * quarantined and has no declarations
+     * @param file   the file as a json object
+     * @param parser the JavaParser to use
+     * @param limits the limits on parsing the file
+     * @return
+     */
+    public List<String[]> extractDeclarations(JSONObject file, JavaParser parser,
+                                              ParseLimits limits) {
+        List<String[]> declarations = new ArrayList<>();
+        if (file.get("content") == null) {  // if the file contains no code, do not attempt parsing
+            metrics.failure("empty file");
+            return declarations;
+        }
+
+        long time = System.nanoTime();
+        String content = (String) file.get("content");
+        ParseCache.Key key = parseCache != null ? ParseCache.key(content) : null;
+        ParsedClasses parsed = key != null ? parseCache.get(key) : null;
+        if (parsed == null) {
+            try {
+                CompilationUnit ast = limits.parse(parser, content);
+                List<String[]> classes = new ArrayList<>();
+                new DataCollector().visit(ast, classes);
+                parsed = new ParsedClasses(null, classes);
+            } catch (ParseLimits.LimitExceeded e) { // not cached, the time limit may vary
+                metrics.failure("quarantined: " + e.limit);
+                limits.quarantine(file, e.getMessage());
+                metrics.time(PipelineMetrics.Stage.PARSE, time);
+                return declarations;
+            } catch (Exception e) {
+                parsed = new ParsedClasses("parse error", null);
+            } catch (AssertionError e) {
+                parsed = new ParsedClasses("parser assertion error", null);
+            }
+            if (key != null)
+                parseCache.put(key, parsed, parsed.weight());
+        }
+        time = metrics.time(PipelineMetrics.Stage.PARSE, time);
+        if (parsed.failure != null) {
+            metrics.failure(parsed.failure); // if parsing failed, return an empty object
+            return declarations;
         }
 
         String[] filePath = file.get("path").toString().split("/");
         String fileName = filePath[filePath.length -1].split("\\.")[0];
+        String repoName = (String) file.get("repo_name");
+        for (String[] clazz: parsed.classes) {
+            String clazzName = clazz[0];
+            if (!clazzName.equals(fileName))
+                clazzName = fileName + "." + clazzName; // TODO: fix this for super-nested classes
+            declarations.add(new String[] {clazzName, clazz[1], repoName});
+        }
+        metrics.counter("declarations").add(declarations.size());
+        metrics.time(PipelineMetrics.Stage.SOLVE, time);
+        return declarations;
+    }
+
+    /**
+     * What the parse cache keeps for a file: why it could not be parsed, or the classes declared
+     * in it as {class name, package name} arrays. These do not depend on the repository or the
+     * path of the file, which are only used to make the declarations
+     */
+    static class ParsedClasses {
+        final String failure; // null if the file parsed
+        final List<String[]> classes;
 
-        DataCollector visitor = new DataCollector((String) file.get("repo_name"), fileName);
-        visitor.visit(ast, this);
+        ParsedClasses(String failure, List<String[]> classes) {
+            this.failure = failure;
+            this.classes = classes;
+        }
+
+        /**
+         * @return a rough estimate of the memory used by the cached data in bytes
+         */
+        long weight() {
+            long weight = 64;
+            if (classes != null)
+                for (String[] clazz: classes)
+                    weight += 96 + 2 * (clazz[0].length() + clazz[1].length());
+            return weight;
+        }
     }
 
     /**
-     * A visitor class that fills the classToPackToRepo dictionary
+     * The parsers used by a single worker thread
      */
-    class DataCollector extends VoidVisitorAdapter<ClassIndex> {
+    static class Parsers {
+        final JSONParser jsonParser;
+        final JavaParser javaParser;
+
+        Parsers(JSONParser jsonParser, JavaParser javaParser) {
+            this.jsonParser = jsonParser;
+            this.javaParser = javaParser;
+        }
+    }
+
+    /**
+     * A visitor class that collects the classes declared in a compilation unit, as {class name,
+     * package name} arrays in the order of their declarations
+     */
+    static class DataCollector extends VoidVisitorAdapter<List<String[]>> {
 
         private String packageName;
-        private String repoName;
-        private String fileName;
 
-        DataCollector(String repoName, String fileName) {
+        DataCollector() {
             packageName = "";
-            this.repoName = repoName;
-            this.fileName = fileName;
         }
 
         /**
          * Record a package declaration
          * @param id   the node in the AST
-         * @param data classIndex object to record the package name to
+         * @param data list of declarations
          */
         @Override
-        public void visit(PackageDeclaration id, ClassIndex data) {
+        public void visit(PackageDeclaration id, List<String[]> data) {
             packageName = id.getNameAsString();
             super.visit(id, data);
         }
@@ -257,16 +852,11 @@ public class ClassIndex {
         /**
          * Record a class declaration
          * @param id   the node in the AST
-         * @param data data classIndex object to record the package name to
+         * @param data list of declarations to record the class to
          */
         @Override
-        public void visit(ClassOrInterfaceDeclaration id, ClassIndex data) {
-            String clazzName = id.getNameAsString();
-            if (!clazzName.equals(fileName))
-                clazzName = fileName + "." + clazzName; // TODO: fix this for super-nested classes
-            data.classToPackToRepo.putIfAbsent(clazzName, new HashMap<>());
-            data.classToPackToRepo.get(clazzName).putIfAbsent(this.packageName, new HashSet<>());
-            data.classToPackToRepo.get(clazzName).get(packageName).add(this.repoName);
+        public void visit(ClassOrInterfaceDeclaration id, List<String[]> data) {
+            data.add(new String[] {id.getNameAsString(), packageName});
         }
     }
 }
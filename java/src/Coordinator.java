@@ -0,0 +1,542 @@
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Runs Parser.processBigQueryFile or ClassIndex.addBigQueryData in several processes, on one
+ * host or on several hosts with a shared file system, that work through a lease directory:
+ *   java Coordinator parse leaseDir input output [input output]...   parse dump files
+ *   java Coordinator index leaseDir input shard [input shard]...     index dump files
+ *   java Coordinator work leaseDir                                   work on the units of a run
+ * The coordinator splits the inputs into units of about -DunitKB (65536) KB, each of which starts
+ * and ends at the beginning of a line (a compressed input is one unit). A worker takes a unit by
+ * creating its lease file, touches the lease while it works on the unit and then writes the result
+ * of the unit to a part file. A lease that has not been touched for -DleaseSeconds (60) seconds
+ * belongs to a worker that died, and any other worker can take it over, so the clocks of the hosts
+ * have to agree to within that time. A worker that finds no unit to lease waits until the units
+ * leased by others are done or their leases expire, so idle workers take over the units of dead
+ * ones. A unit may be done twice when leases race or a worker is only slow, which does no harm
+ * since a unit always gives the same part.
+ *
+ * When all parts are there, the coordinator joins them in the order of the units: the records
+ * into the output of Parser, and the class declarations into a ClassIndex that is written as a
+ * shard (see IndexShards), so the outputs are the same as if one process had made them. Every
+ * worker writes its metrics when it has no more work, and the coordinator adds them up into
+ * leaseDir/metrics.json. With -DlocalWorkers=n the coordinator starts n workers on its own host,
+ * with its own JVM options (e.g. -Dworkers, the number of threads of every worker).
+ *
+ * The lease directory contains:
+ *   plan.json             the task and the units, as {"task":..., "units":[{"input":...,
+ *                         "output":..., "start":..., "end":...},...]} (end is -1 for a whole
+ *                         compressed input)
+ *   leases/unit           the lease of a unit, with the name of the worker that took it
+ *   parts/unit            the result of a unit (records, or declarations in the format of
+ *                         writeDeclarations), and its quarantined files if there are limits
+ *   metrics/worker.json   the metrics summary of a worker (see PipelineMetrics.add)
+ * A coordinator that is started again with the same arguments continues with the parts that
+ * are there.
+ */
+public class Coordinator {
+    static long unitBytes = Math.max(Long.getLong("unitKB", 64 << 10), 1) << 10;
+    static long leaseMillis = Long.getLong("leaseSeconds", 60) * 1000;
+    private static final long POLL_MILLIS = 1000;
+
+    private final Path dir;
+    private final String task; // "parse" or "index"
+    private final List<Unit> units = new ArrayList<>();
+
+    /**
+     * A range of lines of an input
+     */
+    static class Unit {
+        final int id;
+        final String input;
+        final String output;
+        final long start;
+        final long end; // -1 for the end of the file
+
+        Unit(int id, String input, String output, long start, long end) {
+            this.id = id;
+            this.input = input;
+            this.output = output;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    public static void main(String[] args) {
+        boolean work = args.length == 2 && args[0].equals("work");
+        boolean coordinate = args.length >= 4 && args.length % 2 == 0 &&
+                (args[0].equals("parse") || args[0].equals("index"));
+        if (!work && !coordinate) {
+            System.out.println("Usage: Coordinator parse|index leaseDir input output " +
+                    "[input output]... | work leaseDir");
+            return;
+        }
+        try {
+            if (work) {
+                Coordinator coordinator = open(Paths.get(args[1]));
+                coordinator.work(ManagementFactory.getRuntimeMXBean().getName());
+                return;
+            }
+            List<String[]> jobs = new ArrayList<>();
+            for (int i = 2; i < args.length; i += 2)
+                jobs.add(new String[]{args[i], args[i + 1]});
+            Coordinator coordinator = plan(Paths.get(args[1]), args[0], jobs);
+            List<Process> workers = startWorkers(args[1], Integer.getInteger("localWorkers", 0));
+            if (!coordinator.waitForParts(workers)) {
+                System.out.println("All local workers stopped before the units were done");
+                return;
+            }
+            for (Process worker: workers)
+                worker.waitFor();
+            coordinator.join();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Coordinator(Path dir, String task) {
+        this.dir = dir;
+        this.task = task;
+    }
+
+    /**
+     * Split the inputs of a run into units and write the plan to the lease directory, unless the
+     * same plan is there already
+     * @param dir  the lease directory, which is created if needed
+     * @param task "parse" or "index"
+     * @param jobs {input, output} arrays
+     * @return
+     * @throws IOException if the lease directory has a different plan
+     */
+    @SuppressWarnings("unchecked")
+    static Coordinator plan(Path dir, String task, List<String[]> jobs) throws IOException {
+        Coordinator coordinator = new Coordinator(dir, task);
+        for (String[] job: jobs)
+            for (long[] range: split(job[0]))
+                coordinator.units.add(new Unit(coordinator.units.size(), job[0], job[1],
+                        range[0], range[1]));
+        JSONArray units = new JSONArray();
+        for (Unit unit: coordinator.units) {
+            JSONObject object = new JSONObject();
+            object.put("input", unit.input);
+            object.put("output", unit.output);
+            object.put("start", unit.start);
+            object.put("end", unit.end);
+            units.add(object);
+        }
+        JSONObject plan = new JSONObject();
+        plan.put("task", task);
+        plan.put("units", units);
+
+        Path planFile = dir.resolve("plan.json");
+        if (Files.exists(planFile)) {
+            if (!readPlan(planFile).equals(plan))
+                throw new IOException(dir + " has the plan of another run");
+            System.out.println("Continuing the run in " + dir);
+        } else {
+            Files.createDirectories(dir);
+            Path newFile = dir.resolve("new-plan.json");
+            Files.write(newFile, plan.toJSONString().getBytes(StandardCharsets.UTF_8));
+            Files.move(newFile, planFile, StandardCopyOption.ATOMIC_MOVE);
+        }
+        Files.createDirectories(dir.resolve("leases"));
+        Files.createDirectories(dir.resolve("parts"));
+        Files.createDirectories(dir.resolve("metrics"));
+        System.out.println("Planned " + coordinator.units.size() + " units of " + jobs.size() +
+                " inputs in " + dir);
+        return coordinator;
+    }
+
+    /**
+     * Read the plan of a run
+     * @param dir the lease directory
+     * @return
+     * @throws IOException
+     */
+    static Coordinator open(Path dir) throws IOException {
+        JSONObject plan = readPlan(dir.resolve("plan.json"));
+        Coordinator coordinator = new Coordinator(dir, (String) plan.get("task"));
+        for (Object object: (JSONArray) plan.get("units")) {
+            JSONObject unit = (JSONObject) object;
+            coordinator.units.add(new Unit(coordinator.units.size(), (String) unit.get("input"),
+                    (String) unit.get("output"), (Long) unit.get("start"),
+                    (Long) unit.get("end")));
+        }
+        return coordinator;
+    }
+
+    private static JSONObject readPlan(Path planFile) throws IOException {
+        try (Reader reader = Files.newBufferedReader(planFile, StandardCharsets.UTF_8)) {
+            return (JSONObject) new JSONParser().parse(reader);
+        } catch (ParseException | ClassCastException e) {
+            throw new IOException("Malformed plan " + planFile, e);
+        }
+    }
+
+    /**
+     * Split a file into ranges of about unitBytes bytes that start and end at the beginning of
+     * a line (after a \n)
+     * @param fileName
+     * @return {start, end} arrays, one {0, -1} for a compressed file
+     * @throws IOException
+     */
+    static List<long[]> split(String fileName) throws IOException {
+        List<long[]> ranges = new ArrayList<>();
+        if (DataFiles.isCompressed(fileName)) {
+            ranges.add(new long[]{0, -1});
+            return ranges;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "r")) {
+            long size = file.length();
+            long start = 0;
+            do {
+                long end = Math.min(start + unitBytes, size);
+                if (end < size) { // move the end after the next \n
+                    file.seek(end - 1);
+                    byte[] buffer = new byte[1 << 16];
+                    search:
+                    for (int count; (count = file.read(buffer)) > 0; end += count)
+                        for (int i = 0; i < count; i++)
+                            if (buffer[i] == '\n') {
+                                end += i;
+                                break search;
+                            }
+                    end = Math.min(end, size);
+                }
+                ranges.add(new long[]{start, end});
+                start = end;
+            } while (start < size);
+        }
+        return ranges;
+    }
+
+    /**
+     * Start worker processes with the class path and the JVM options of this one
+     * @param dir   the lease directory
+     * @param count the number of workers
+     * @return
+     * @throws IOException
+     */
+    private static List<Process> startWorkers(String dir, int count) throws IOException {
+        List<Process> workers = new ArrayList<>();
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Coordinator.class.getName());
+        command.add("work");
+        command.add(dir);
+        for (int i = 0; i < count; i++)
+            workers.add(new ProcessBuilder(command).inheritIO().start());
+        return workers;
+    }
+
+    /**
+     * Wait until every unit has its part
+     * @param workers the workers started by this process, if any
+     * @return false if there are workers and all of them stopped before the units were done
+     * @throws InterruptedException
+     */
+    private boolean waitForParts(List<Process> workers) throws InterruptedException {
+        while (true) {
+            boolean alive = workers.isEmpty();
+            for (Process worker: workers)
+                alive |= worker.isAlive();
+            int done = 0;
+            for (Unit unit: units)
+                if (Files.exists(partFile(unit)))
+                    done++;
+            if (done == units.size())
+                return true;
+            if (!alive)
+                return false;
+            Thread.sleep(POLL_MILLIS);
+        }
+    }
+
+    /**
+     * @return the file with the result of a unit, in the format of the output (binary records
+     * or not, compressed or not)
+     */
+    private Path partFile(Unit unit) {
+        return dir.resolve("parts").resolve(unit.id +
+                (task.equals("parse") && BinaryRecords.isBinary(unit.output) ? ".rec" : "") +
+                (DataFiles.isCompressed(unit.output) ? ".gz" : ""));
+    }
+
+    private Path leaseFile(Unit unit) {
+        return dir.resolve("leases").resolve(String.valueOf(unit.id));
+    }
+
+    private static Path quarantineFile(Path file) {
+        return file.resolveSibling(file.getFileName() + ".quarantine");
+    }
+
+    /**
+     * Work on units until all of them are done, then write the metrics of this process
+     * @param worker the name of this worker
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    void work(String worker) throws IOException, InterruptedException {
+        Heartbeat heartbeat = new Heartbeat();
+        heartbeat.start();
+        int first = Math.floorMod(worker.hashCode(), Math.max(units.size(), 1));
+        int done = 0;
+        try {
+            boolean pending = true;
+            while (pending) {
+                pending = false;
+                Unit leased = null;
+                // workers start looking at different units, so they rarely race for a lease
+                for (int i = 0; i < units.size() && leased == null; i++) {
+                    Unit unit = units.get((first + i) % units.size());
+                    if (Files.exists(partFile(unit)))
+                        continue;
+                    pending = true;
+                    if (lease(unit, worker))
+                        leased = unit;
+                }
+                if (leased == null) {
+                    if (pending) // wait for the leases of other workers to end or expire
+                        Thread.sleep(POLL_MILLIS);
+                    continue;
+                }
+                heartbeat.lease = leaseFile(leased);
+                try {
+                    process(leased, worker);
+                    done++;
+                } finally {
+                    heartbeat.lease = null;
+                    Files.deleteIfExists(leaseFile(leased));
+                }
+            }
+        } finally {
+            heartbeat.interrupt();
+        }
+        PipelineMetrics metrics = task.equals("parse") ? Parser.metrics : ClassIndex.metrics;
+        metrics.writeSummary(dir.resolve("metrics").resolve(
+                worker.replaceAll("[^A-Za-z0-9.-]", "_") + ".json").toString());
+        System.out.println("Worker " + worker + " did " + done + " units");
+    }
+
+    /**
+     * Take the lease of a unit, if no other worker has it or its lease has expired
+     * @return true iff this worker has the lease
+     */
+    private boolean lease(Unit unit, String worker) throws IOException {
+        Path lease = leaseFile(unit);
+        if (createLease(lease, worker))
+            return true;
+        try {
+            if (System.currentTimeMillis() - Files.getLastModifiedTime(lease).toMillis() <
+                    leaseMillis)
+                return false;
+            // only one of the workers that find the lease expired can move it away
+            Path expired = lease.resolveSibling(unit.id + ".expired");
+            Files.move(lease, expired, StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(expired);
+        } catch (NoSuchFileException e) { // released or taken over in the meantime
+            return false;
+        }
+        System.out.println("Taking over the expired lease of unit " + unit.id);
+        return createLease(lease, worker);
+    }
+
+    private static boolean createLease(Path lease, String worker) throws IOException {
+        try {
+            Files.write(lease, worker.getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Touches the lease of the unit that is being worked on, so that it does not expire
+     */
+    private static class Heartbeat extends Thread {
+        volatile Path lease;
+
+        Heartbeat() {
+            super("lease heartbeat");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Thread.sleep(Math.max(leaseMillis / 4, 1));
+                    Path current = lease;
+                    if (current != null)
+                        try {
+                            Files.setLastModifiedTime(current,
+                                    FileTime.fromMillis(System.currentTimeMillis()));
+                        } catch (IOException e) {
+                            // the lease was taken over, the unit is done anyway
+                        }
+                }
+            } catch (InterruptedException e) {
+                // no more units
+            }
+        }
+    }
+
+    /**
+     * Do a unit, writing its result to a temporary file that then becomes its part
+     */
+    private void process(Unit unit, String worker) throws IOException {
+        Path part = partFile(unit);
+        Path temporary = part.resolveSibling("tmp-" +
+                worker.replaceAll("[^A-Za-z0-9.-]", "_") + "-" + part.getFileName());
+        int threads = Integer.getInteger("workers", 1);
+        if (task.equals("parse")) {
+            if (!Parser.processBigQueryFile(unit.input, unit.start, unit.end,
+                    temporary.toString(), threads))
+                throw new IOException("Could not process unit " + unit.id);
+        } else {
+            List<String[]> declarations = new ArrayList<>();
+            try (Stream<String> lines = ClassIndex.metrics.timeReads(lines(unit));
+                 ParseLimits limits = ParseLimits.fromProperties(
+                         quarantineFile(temporary).toString())) {
+                new ClassIndex().extractDeclarations(lines, threads, limits, declarations::add);
+            }
+            try (DataOutputStream out = new DataOutputStream(
+                    DataFiles.openOutput(temporary.toString()))) {
+                writeDeclarations(declarations, out);
+            }
+        }
+        if (Files.exists(quarantineFile(temporary)))
+            Files.move(quarantineFile(temporary), quarantineFile(part),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(temporary, part, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the lines of a unit, decoded as UTF-8 (malformed input is reported with an
+     * UncheckedIOException, as by DataFiles.lines)
+     */
+    private static Stream<String> lines(Unit unit) throws IOException {
+        if (unit.end < 0)
+            return DataFiles.lines(unit.input);
+        return BigQueryLines.lines(unit.input, unit.start, unit.end).map(line -> {
+            try {
+                return StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(line))
+                        .toString();
+            } catch (CharacterCodingException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Write class declarations as their number followed by the class, package and repository
+     * of each
+     */
+    static void writeDeclarations(List<String[]> declarations, DataOutputStream out)
+            throws IOException {
+        out.writeInt(declarations.size());
+        for (String[] declaration: declarations)
+            for (String name: declaration)
+                out.writeUTF(name);
+    }
+
+    static List<String[]> readDeclarations(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String[]> declarations = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            declarations.add(new String[]{in.readUTF(), in.readUTF(), in.readUTF()});
+        return declarations;
+    }
+
+    /**
+     * Join the parts into the outputs, in the order of the units, and add up the metrics of the
+     * workers. Every output is written to a partial file (see JobManifest) that then replaces it
+     * @throws IOException
+     */
+    void join() throws IOException {
+        for (int first = 0; first < units.size(); ) {
+            String output = units.get(first).output;
+            int end = first;
+            while (end < units.size() && units.get(end).output.equals(output))
+                end++;
+            List<Unit> parts = units.subList(first, end);
+            Path partial = Paths.get(output).resolveSibling("partial-" +
+                    Paths.get(output).getFileName());
+            if (task.equals("parse")) {
+                try (OutputStream out = new FileOutputStream(partial.toFile())) {
+                    for (Unit unit: parts)
+                        Files.copy(partFile(unit), out); // as can gzip members and record segments
+                }
+            } else {
+                ClassIndex classIndex = new ClassIndex();
+                for (Unit unit: parts)
+                    try (DataInputStream in = new DataInputStream(
+                            DataFiles.openInput(partFile(unit).toString()))) {
+                        readDeclarations(in).forEach(classIndex::add);
+                    }
+                IndexShards.write(classIndex, partial.toString());
+            }
+            Files.move(partial, Paths.get(output), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            joinQuarantined(parts, output);
+            System.out.println("Joined " + parts.size() + " parts into " + output);
+            first = end;
+        }
+
+        PipelineMetrics metrics = task.equals("parse") ? Parser.metrics : ClassIndex.metrics;
+        try (DirectoryStream<Path> summaries = Files.newDirectoryStream(
+                dir.resolve("metrics"), "*.json")) {
+            for (Path summary: summaries)
+                try (Reader reader = Files.newBufferedReader(summary, StandardCharsets.UTF_8)) {
+                    metrics.add((JSONObject) new JSONParser().parse(reader));
+                } catch (ParseException | ClassCastException e) {
+                    throw new IOException("Malformed metrics " + summary, e);
+                }
+        }
+        metrics.writeSummary(dir.resolve("metrics.json").toString());
+        // delete the parts, and the temporary parts of workers that died
+        try (DirectoryStream<Path> parts = Files.newDirectoryStream(dir.resolve("parts"))) {
+            for (Path part: parts)
+                Files.deleteIfExists(part);
+        }
+    }
+
+    /**
+     * Join the files quarantined by the workers into the quarantine file of an output, if there
+     * are any
+     */
+    private void joinQuarantined(List<Unit> parts, String output) throws IOException {
+        Path quarantine = quarantineFile(Paths.get(output));
+        boolean any = false;
+        for (Unit unit: parts)
+            any |= Files.exists(quarantineFile(partFile(unit)));
+        if (!any)
+            return;
+        try (OutputStream out = new FileOutputStream(quarantine.toFile())) {
+            for (Unit unit: parts)
+                if (Files.exists(quarantineFile(partFile(unit))))
+                    Files.copy(quarantineFile(partFile(unit)), out);
+        }
+    }
+}
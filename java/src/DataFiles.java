@@ -0,0 +1,316 @@
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Opens the data files of the pipeline (BigQuery dumps, class indices, parsed output). Whether a
+ * file is compressed is decided by its name: files ending in .gz are read and written with gzip,
+ * all others as they are. Dumps and parsed output are hundreds of GB on slow disks, so the
+ * streams have large buffers, and input is read ahead on a separate thread. That thread also
+ * decompresses, so reading and decompressing the next megabytes overlaps with parsing the
+ * current ones. Read-ahead can be turned off with -DreadAhead=false.
+ */
+public class DataFiles {
+    static final int BUFFER_SIZE = 1 << 20;
+    private static final int GZIP_BUFFER_SIZE = 1 << 16;
+    private static final int READ_AHEAD_BUFFERS = 4; // buffers read but not yet consumed
+    static boolean readAhead = !"false".equals(System.getProperty("readAhead"));
+
+    /**
+     * @param fileName
+     * @return true iff the file is (to be) compressed
+     */
+    public static boolean isCompressed(String fileName) {
+        return fileName.endsWith(".gz");
+    }
+
+    /**
+     * Open a file for reading, decompressing it if needed
+     * @param fileName
+     * @return a buffered stream of the (uncompressed) content
+     * @throws IOException
+     */
+    public static InputStream openInput(String fileName) throws IOException {
+        InputStream in = new FileInputStream(fileName);
+        try {
+            if (isCompressed(fileName))
+                in = new GZIPInputStream(in, GZIP_BUFFER_SIZE);
+        } catch (IOException e) { // not in gzip format
+            in.close();
+            throw e;
+        }
+        return buffered(in, fileName);
+    }
+
+    /**
+     * Same as openInput(fileName), but only the bytes from start to end are read. Compressed
+     * files can only be read as a whole
+     * @param fileName
+     * @param start    the position of the first byte
+     * @param end      the position after the last byte
+     * @return a buffered stream of the bytes
+     * @throws IOException
+     */
+    public static InputStream openInput(String fileName, long start, long end)
+            throws IOException {
+        if (isCompressed(fileName))
+            throw new IOException("Cannot read part of the compressed file " + fileName);
+        FileInputStream in = new FileInputStream(fileName);
+        try {
+            in.getChannel().position(start);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return buffered(new RangeInputStream(in, end - start), fileName);
+    }
+
+    private static InputStream buffered(InputStream in, String fileName) {
+        if (readAhead)
+            return new ReadAheadInputStream(in, fileName);
+        return new BufferedInputStream(in, BUFFER_SIZE);
+    }
+
+    /**
+     * Create (or overwrite) a file for writing, compressing it if needed. Flushing the stream
+     * writes out everything written so far, even if the file is compressed
+     * @param fileName
+     * @return a buffered stream
+     * @throws IOException
+     */
+    public static OutputStream openOutput(String fileName) throws IOException {
+        return openOutput(fileName, false);
+    }
+
+    /**
+     * Same as openOutput(fileName), but what is written can be appended to the file. A
+     * compressed file then gets another gzip member, which is read as if it were part of the
+     * first
+     * @param fileName
+     * @param append   if true, the file is appended to instead of overwritten
+     * @return a buffered stream
+     * @throws IOException
+     */
+    public static OutputStream openOutput(String fileName, boolean append) throws IOException {
+        OutputStream out = new FileOutputStream(fileName, append);
+        if (isCompressed(fileName))
+            out = new GZIPOutputStream(out, GZIP_BUFFER_SIZE, true);
+        return new BufferedOutputStream(out, BUFFER_SIZE);
+    }
+
+    /**
+     * Same as Files.lines(Paths.get(fileName)), but decompressed if needed: the lines are decoded
+     * as UTF-8, and malformed input is reported with an UncheckedIOException. The stream has to
+     * be closed to close the file
+     * @param fileName
+     * @return
+     * @throws IOException
+     */
+    public static Stream<String> lines(String fileName) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(openInput(fileName),
+                StandardCharsets.UTF_8.newDecoder()), 1 << 16);
+        return reader.lines().onClose(() -> {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Same as openInput, decoded with a charset (malformed input is replaced, as by FileReader)
+     * @param fileName
+     * @param charset
+     * @return
+     * @throws IOException
+     */
+    public static BufferedReader newReader(String fileName, Charset charset) throws IOException {
+        return new BufferedReader(new InputStreamReader(openInput(fileName), charset), 1 << 16);
+    }
+
+    /**
+     * Same as openOutput, encoded with a charset
+     * @param fileName
+     * @param charset
+     * @return
+     * @throws IOException
+     */
+    public static Writer newWriter(String fileName, Charset charset) throws IOException {
+        return newWriter(fileName, charset, false);
+    }
+
+    /**
+     * Same as openOutput(fileName, append), encoded with a charset
+     * @param fileName
+     * @param charset
+     * @param append
+     * @return
+     * @throws IOException
+     */
+    public static Writer newWriter(String fileName, Charset charset, boolean append)
+            throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(openOutput(fileName, append), charset),
+                1 << 16);
+    }
+
+    /**
+     * The first bytes of another stream
+     */
+    static class RangeInputStream extends FilterInputStream {
+        private long remaining;
+
+        RangeInputStream(InputStream in, long length) {
+            super(in);
+            remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0)
+                return -1;
+            int b = in.read();
+            if (b >= 0)
+                remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0)
+                return -1;
+            int count = in.read(buffer, offset, (int) Math.min(length, remaining));
+            if (count > 0)
+                remaining -= count;
+            return count;
+        }
+    }
+
+    /**
+     * An input stream whose content is read from another stream by a separate thread, up to
+     * READ_AHEAD_BUFFERS buffers ahead of the reader. The buffers are reused, so the memory used
+     * does not depend on the size of the file
+     */
+    static class ReadAheadInputStream extends InputStream {
+        private final InputStream in;
+        private final BlockingQueue<byte[]> free = new ArrayBlockingQueue<>(READ_AHEAD_BUFFERS);
+        // buffers that have been filled, followed by END or an error once the input is read
+        private final BlockingQueue<Chunk> filled = new ArrayBlockingQueue<>(
+                READ_AHEAD_BUFFERS + 1);
+        private final Thread thread;
+        private Chunk chunk; // the chunk being consumed, null before the first one
+        private int position = 0;
+
+        /**
+         * A filled buffer, the end of the input or the error that ended reading
+         */
+        private static class Chunk {
+            static final Chunk END = new Chunk(null, 0, null);
+            final byte[] buffer;
+            final int length;
+            final IOException error;
+
+            Chunk(byte[] buffer, int length, IOException error) {
+                this.buffer = buffer;
+                this.length = length;
+                this.error = error;
+            }
+        }
+
+        ReadAheadInputStream(InputStream in, String name) {
+            this.in = in;
+            for (int i = 0; i < READ_AHEAD_BUFFERS; i++)
+                free.add(new byte[BUFFER_SIZE]);
+            thread = new Thread(this::readAhead, "read-ahead " + name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void readAhead() {
+            try {
+                Chunk last;
+                try {
+                    while (true) {
+                        byte[] buffer = free.take();
+                        int length = 0;
+                        int count = 0;
+                        while (length < buffer.length &&
+                                (count = in.read(buffer, length, buffer.length - length)) >= 0)
+                            length += count;
+                        if (length > 0)
+                            filled.put(new Chunk(buffer, length, null));
+                        if (count < 0) {
+                            last = Chunk.END;
+                            break;
+                        }
+                    }
+                } catch (IOException e) {
+                    last = new Chunk(null, 0, e);
+                }
+                filled.put(last);
+            } catch (InterruptedException e) {
+                // the stream has been closed
+            }
+        }
+
+        /**
+         * @return false at the end of the input
+         */
+        private boolean nextChunk() throws IOException {
+            if (chunk != null && position < chunk.length)
+                return true;
+            if (chunk == Chunk.END)
+                return false;
+            if (chunk != null)
+                free.add(chunk.buffer);
+            try {
+                chunk = filled.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            position = 0;
+            if (chunk.error != null) {
+                IOException error = chunk.error;
+                chunk = Chunk.END;
+                throw error;
+            }
+            return chunk != Chunk.END;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk())
+                return -1;
+            return chunk.buffer[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0)
+                return 0;
+            if (!nextChunk())
+                return -1;
+            int count = Math.min(length, chunk.length - position);
+            System.arraycopy(chunk.buffer, position, buffer, offset, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            thread.interrupt();
+            try {
+                thread.join(); // the thread may still be reading from in
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            in.close();
+        }
+    }
+}
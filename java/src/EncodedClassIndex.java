@@ -0,0 +1,295 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable, dictionary-encoded copy of a ClassIndex. Repository and package names are stored
+ * once in sorted tables and referred to by int ids, and the class -> package -> repositories
+ * structure is flattened into a few int arrays, so there is no per-entry HashMap or HashSet.
+ * The order in which classes, packages and repositories are iterated is that of the ClassIndex
+ * the copy was made from, so every method gives the same answer as its ClassIndex counterpart.
+ * A reverse index from repositories to the classes they define makes findPackage independent of
+ * how many packages in other repositories define a class with the same name.
+ */
+public class EncodedClassIndex implements TypeIndex {
+    private final String[] repoNames; // sorted, the id of a repository is its position here
+    private final String[] packNames; // sorted, the id of a package is its position here
+    private final String[] classNames; // in the iteration order of the original index
+    private final int[] classesByName; // class ids sorted by class name
+    private final int[] classEntries; // entries of class i are classEntries[i]..classEntries[i+1]
+    private final int[] entryPacks; // the package id of every entry
+    private final int[] entryRepos; // repositories of entry i are entryRepos[i]..entryRepos[i+1]
+    private final int[] repoIds; // the repository ids of all entries
+    private final int[] repoSizes; // the number of classes defined in every repository
+    private final int[][] repoPacks; // the sorted package ids defined in every repository
+    // the reverse index: the classes defined in repository i are repoClasses[repoClassStart[i]]..
+    // repoClasses[repoClassStart[i+1]-1], sorted by class id, and repoClassPacks gives the package
+    // of each of them (a class defined in several packages of a repository appears several times)
+    private final int[] repoClassStart;
+    private final int[] repoClasses;
+    private final int[] repoClassPacks;
+
+    public static void main(String[] args) {
+        String jsonFile = args.length > 0 ? args[0] : "../data/classIndex.json";
+        long before = usedMemory();
+        ClassIndex classIndex = new ClassIndex();
+        classIndex.readJson(jsonFile);
+        long mapsSize = usedMemory() - before;
+        EncodedClassIndex encoded = new EncodedClassIndex(classIndex);
+        classIndex = null;
+        long encodedSize = usedMemory() - before;
+        System.out.println("HashMap index: " + mapsSize / (1 << 20) + " MB");
+        System.out.println("Encoded index: " + encodedSize / (1 << 20) + " MB (" +
+                encoded.classNames.length + " classes, " + encoded.packNames.length +
+                " packages, " + encoded.repoNames.length + " repositories, " +
+                encoded.repoIds.length + " class definitions)");
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public EncodedClassIndex(ClassIndex classIndex) {
+        HashSet<String> repoSet = new HashSet<>();
+        HashSet<String> packSet = new HashSet<>();
+        int entries = 0;
+        int definitions = 0;
+        for (HashMap<String, Set<String>> clazz: classIndex.classToPackToRepo.values()) {
+            entries += clazz.size();
+            for (Map.Entry<String, Set<String>> pack: clazz.entrySet()) {
+                packSet.add(pack.getKey());
+                repoSet.addAll(pack.getValue());
+                definitions += pack.getValue().size();
+            }
+        }
+        repoNames = repoSet.toArray(new String[0]);
+        packNames = packSet.toArray(new String[0]);
+        Arrays.sort(repoNames);
+        Arrays.sort(packNames);
+        HashMap<String, Integer> repoId = new HashMap<>(); // only needed while encoding
+        HashMap<String, Integer> packId = new HashMap<>();
+        for (int i = 0; i < repoNames.length; i++)
+            repoId.put(repoNames[i], i);
+        for (int i = 0; i < packNames.length; i++)
+            packId.put(packNames[i], i);
+
+        classNames = new String[classIndex.classToPackToRepo.size()];
+        classEntries = new int[classNames.length + 1];
+        entryPacks = new int[entries];
+        entryRepos = new int[entries + 1];
+        repoIds = new int[definitions];
+        repoSizes = new int[repoNames.length];
+        int classId = 0;
+        int entry = 0;
+        int definition = 0;
+        for (Map.Entry<String, HashMap<String, Set<String>>> clazz:
+                classIndex.classToPackToRepo.entrySet()) {
+            classNames[classId] = clazz.getKey();
+            for (Map.Entry<String, Set<String>> pack: clazz.getValue().entrySet()) {
+                entryPacks[entry] = packId.get(pack.getKey());
+                for (String repo: pack.getValue()) {
+                    repoIds[definition++] = repoId.get(repo);
+                    repoSizes[repoId.get(repo)]++;
+                }
+                entryRepos[++entry] = definition;
+            }
+            classEntries[++classId] = entry;
+        }
+
+        Integer[] byName = new Integer[classNames.length];
+        for (int i = 0; i < byName.length; i++)
+            byName[i] = i;
+        Arrays.sort(byName, (a, b) -> classNames[a].compareTo(classNames[b]));
+        classesByName = new int[byName.length];
+        for (int i = 0; i < byName.length; i++)
+            classesByName[i] = byName[i];
+
+        repoPacks = new int[repoNames.length][];
+        List<HashSet<Integer>> packsOfRepo = new ArrayList<>(repoNames.length);
+        for (int i = 0; i < repoNames.length; i++)
+            packsOfRepo.add(new HashSet<>());
+        for (entry = 0; entry < entryPacks.length; entry++)
+            for (int i = entryRepos[entry]; i < entryRepos[entry + 1]; i++)
+                packsOfRepo.get(repoIds[i]).add(entryPacks[entry]);
+        for (int i = 0; i < repoPacks.length; i++) {
+            repoPacks[i] = packsOfRepo.get(i).stream().mapToInt(Integer::intValue).toArray();
+            Arrays.sort(repoPacks[i]);
+        }
+
+        // going through classes in id order keeps the classes of every repository sorted and
+        // their packages in the order of the original index
+        repoClassStart = new int[repoNames.length + 1];
+        for (int repo: repoIds)
+            repoClassStart[repo + 1]++;
+        for (int i = 0; i < repoNames.length; i++)
+            repoClassStart[i + 1] += repoClassStart[i];
+        int[] next = Arrays.copyOf(repoClassStart, repoNames.length);
+        repoClasses = new int[repoIds.length];
+        repoClassPacks = new int[repoIds.length];
+        for (classId = 0; classId < classNames.length; classId++)
+            for (entry = classEntries[classId]; entry < classEntries[classId + 1]; entry++)
+                for (int i = entryRepos[entry]; i < entryRepos[entry + 1]; i++) {
+                    repoClasses[next[repoIds[i]]] = classId;
+                    repoClassPacks[next[repoIds[i]]++] = entryPacks[entry];
+                }
+    }
+
+    private int classId(String clazz) {
+        int low = 0;
+        int high = classesByName.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = classNames[classesByName[middle]].compareTo(clazz);
+            if (comparison < 0)
+                low = middle + 1;
+            else if (comparison > 0)
+                high = middle - 1;
+            else
+                return classesByName[middle];
+        }
+        return -1;
+    }
+
+    private int repoId(String repo) {
+        int id = Arrays.binarySearch(repoNames, repo);
+        return id < 0 ? -1 : id;
+    }
+
+    private int packId(String pack) {
+        int id = Arrays.binarySearch(packNames, pack);
+        return id < 0 ? -1 : id;
+    }
+
+    @Override
+    public boolean containsClass(String clazz) {
+        return classId(clazz) >= 0;
+    }
+
+    /**
+     * Uses the reverse index, so the cost depends on the number of packages the repository
+     * defines the class in (usually one) rather than on the number of packages in the whole
+     * index that define a class with this name
+     */
+    @Override
+    public String findPackage(String clazz, Set<String> packages, String repo) {
+        int classId = classId(clazz);
+        int repoId = repoId(repo);
+        if (classId < 0 || repoId < 0)
+            return null;
+        for (int i = firstRepoClass(repoId, classId);
+             i < repoClassStart[repoId + 1] && repoClasses[i] == classId; i++)
+            if (packages.contains(packNames[repoClassPacks[i]]))
+                return packNames[repoClassPacks[i]];
+        return null;
+    }
+
+    @Override
+    public List<String> findPackages(String clazz, String repo) {
+        List<String> found = new ArrayList<>();
+        int classId = classId(clazz);
+        int repoId = repoId(repo);
+        if (classId < 0 || repoId < 0)
+            return found;
+        for (int i = firstRepoClass(repoId, classId);
+             i < repoClassStart[repoId + 1] && repoClasses[i] == classId; i++)
+            found.add(packNames[repoClassPacks[i]]);
+        return found;
+    }
+
+    /**
+     * @return the first occurrence of the class among the classes of the repository, or where
+     * it would be
+     */
+    private int firstRepoClass(int repoId, int classId) {
+        int low = repoClassStart[repoId];
+        int high = repoClassStart[repoId + 1];
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (repoClasses[middle] < classId)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    @Override
+    public boolean hasPackage(String repo, String pack) {
+        int repoId = repoId(repo);
+        int packId = packId(pack);
+        return repoId >= 0 && packId >= 0 && Arrays.binarySearch(repoPacks[repoId], packId) >= 0;
+    }
+
+    /**
+     * See ClassIndex.getRepoToPackage
+     * @return
+     */
+    public HashMap<String, HashSet<String>> getRepoToPackage() {
+        HashMap<String, HashSet<String>> repoToPackage = new HashMap<>();
+        for (int repoId = 0; repoId < repoNames.length; repoId++) {
+            HashSet<String> packs = new HashSet<>();
+            for (int packId: repoPacks[repoId])
+                packs.add(packNames[packId]);
+            repoToPackage.put(repoNames[repoId], packs);
+        }
+        return repoToPackage;
+    }
+
+    /**
+     * See ClassIndex.getRepoSizes
+     * @return
+     */
+    public HashMap<String, Integer> getRepoSizes() {
+        HashMap<String, Integer> result = new HashMap<>();
+        for (int repoId = 0; repoId < repoNames.length; repoId++)
+            result.put(repoNames[repoId], repoSizes[repoId]);
+        return result;
+    }
+
+    /**
+     * The same algorithm as ClassIndex.getValidRepos, run on repository ids
+     * @return
+     */
+    @Override
+    public HashSet<String> getValidRepos() {
+        boolean[] valid = new boolean[repoNames.length];
+        Arrays.fill(valid, true);
+        int emptyPackId = packId("");
+        for (int classId = 0; classId < classNames.length; classId++)
+            for (int entry = classEntries[classId]; entry < classEntries[classId + 1]; entry++) {
+                if (entryPacks[entry] == emptyPackId) {
+                    for (int i = entryRepos[entry]; i < entryRepos[entry + 1]; i++)
+                        valid[repoIds[i]] = false;
+                    continue;
+                }
+                int maxSize = 0; // the size of the largest repo in which this class is defined
+                int maxRepo = -1; // the id of that repo
+                for (int i = entryRepos[entry]; i < entryRepos[entry + 1]; i++) {
+                    int repo = repoIds[i];
+                    if (valid[repo]) {
+                        if (repoSizes[repo] > maxSize) {
+                            if (maxRepo >= 0)
+                                valid[maxRepo] = false;
+                            maxSize = repoSizes[repo];
+                            maxRepo = repo;
+                        } else {
+                            valid[repo] = false;
+                        }
+                    }
+                }
+            }
+
+        HashSet<String> result = new HashSet<>();
+        for (int repoId = 0; repoId < repoNames.length; repoId++)
+            if (valid[repoId])
+                result.add(repoNames[repoId]);
+        return result;
+    }
+}
@@ -0,0 +1,273 @@
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * An append-only log of changes to the global class index, so that adding or dropping some
+ * repositories does not take a rebuild of the index from all dumps. The classes of new
+ * repositories are extracted when they are logged, and applying the log reads the index, makes
+ * the changes (see ClassIndex.add and ClassIndex.removeRepos) and writes the index and its
+ * repository statistics. The classes of a repository are replaced by logging its removal before
+ * the new classes:
+ *   java IndexChangeLog add dumpFile...    log the classes of the repositories in dump files
+ *   java IndexChangeLog remove repo...     log that repositories are to be removed
+ *   java IndexChangeLog apply              apply the changes logged since the last apply
+ * The log is kept next to the index (classIndex.json -> classIndex.log), and every line of it is
+ * a json object:
+ *   {"add":repo,"classes":[[class,package],...]}  adds classes of a repository
+ *   {"remove":repo}                               removes the classes of a repository
+ *   {"applied":indexFile}                         the changes above were applied to the index
+ */
+public class IndexChangeLog implements Closeable {
+    private static final String INDEX_FILE = "../data/classIndex.json";
+
+    private final Writer log;
+
+    public static void main(String[] args) {
+        if (args.length == 0 || !Arrays.asList("add", "remove", "apply").contains(args[0])) {
+            System.out.println("Usage: IndexChangeLog add dumpFile... | remove repo... | apply");
+            return;
+        }
+        String logFile = fileFor(INDEX_FILE);
+        try {
+            if (args[0].equals("apply")) {
+                apply(logFile, INDEX_FILE);
+                return;
+            }
+            try (IndexChangeLog log = new IndexChangeLog(logFile)) {
+                if (args[0].equals("remove")) {
+                    for (int i = 1; i < args.length; i++)
+                        log.remove(args[i]);
+                    System.out.println("Logged the removal of " + (args.length - 1) +
+                            " repositories");
+                    return;
+                }
+                ClassIndex added = new ClassIndex();
+                int workers = Integer.getInteger("workers", 1);
+                for (int i = 1; i < args.length; i++)
+                    try (ParseLimits limits = ParseLimits.fromProperties("../data/indices/" +
+                            new File(args[i]).getName() + ".quarantine")) {
+                        if (!added.addBigQueryData(args[i], workers, limits))
+                            throw new IOException("Could not read " + args[i]);
+                    }
+                Map<String, List<String[]>> repos = declarationsByRepo(added);
+                for (Map.Entry<String, List<String[]>> repo: repos.entrySet())
+                    log.add(repo.getKey(), repo.getValue());
+                System.out.println("Logged the classes of " + repos.size() + " repositories");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Open a log to append changes to, creating it if needed
+     * @param fileName
+     * @throws IOException
+     */
+    public IndexChangeLog(String fileName) throws IOException {
+        log = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileName, true),
+                StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param indexFile the json file of a class index
+     * @return the file in which the changes to that index are logged
+     */
+    public static String fileFor(String indexFile) {
+        if (indexFile.endsWith(".json"))
+            indexFile = indexFile.substring(0, indexFile.length() - ".json".length());
+        return indexFile + ".log";
+    }
+
+    /**
+     * Log that classes of a repository are to be added
+     * @param repo
+     * @param declarations {class name, package name} arrays
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    public void add(String repo, List<String[]> declarations) throws IOException {
+        JSONArray classes = new JSONArray();
+        for (String[] declaration: declarations) {
+            JSONArray clazz = new JSONArray();
+            clazz.add(declaration[0]);
+            clazz.add(declaration[1]);
+            classes.add(clazz);
+        }
+        JSONObject change = new JSONObject();
+        change.put("add", repo);
+        change.put("classes", classes);
+        append(change);
+    }
+
+    /**
+     * Log that the classes of a repository are to be removed
+     * @param repo
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    public void remove(String repo) throws IOException {
+        JSONObject change = new JSONObject();
+        change.put("remove", repo);
+        append(change);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void applied(String indexFile) throws IOException {
+        JSONObject change = new JSONObject();
+        change.put("applied", indexFile);
+        append(change);
+    }
+
+    /**
+     * Write a change as a line, and make sure it is in the file before the next one is logged
+     */
+    private void append(JSONObject change) throws IOException {
+        log.write(change.toJSONString());
+        log.write('\n');
+        log.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+
+    /**
+     * Apply the changes logged since the last apply to an index, replace the index, its binary
+     * version if there is one (see BinaryClassIndex) and its repository statistics (see
+     * RepoStats), and log that the changes have been applied. The index is written to a new file
+     * that then replaces the old one, so it is never left half written, and nothing is replaced
+     * or logged if the index cannot be read or written
+     * @param logFile
+     * @param indexFile
+     * @throws IOException
+     */
+    public static void apply(String logFile, String indexFile) throws IOException {
+        List<JSONObject> changes = newChanges(logFile);
+        if (changes.isEmpty()) {
+            System.out.println("No new changes in " + logFile);
+            return;
+        }
+        ClassIndex classIndex = new ClassIndex();
+        System.out.println("Read " + indexFile + "...");
+        if (!classIndex.readJson(indexFile))
+            throw new IOException("Could not read " + indexFile);
+        System.out.println("Apply " + changes.size() + " changes...");
+        apply(changes, classIndex);
+
+        Path index = Paths.get(indexFile);
+        Path newIndex = index.resolveSibling("new-" + index.getFileName());
+        if (!classIndex.writeJson(newIndex.toString())) {
+            Files.deleteIfExists(newIndex);
+            throw new IOException("Could not write " + newIndex);
+        }
+        // the binary version is written after the json one, so that it is not older (see
+        // SymbolSolver.loadClassIndex)
+        Path binary = Paths.get(BinaryClassIndex.fileFor(indexFile));
+        Path newBinary = binary.resolveSibling("new-" + binary.getFileName());
+        if (Files.exists(binary))
+            try {
+                BinaryClassIndex.write(classIndex, newBinary.toString());
+            } catch (IOException e) {
+                Files.deleteIfExists(newIndex);
+                Files.deleteIfExists(newBinary);
+                throw e;
+            }
+        Files.move(newIndex, index, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        if (Files.exists(newBinary))
+            Files.move(newBinary, binary, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        new RepoStats(classIndex).write(RepoStats.fileFor(indexFile));
+        try (IndexChangeLog log = new IndexChangeLog(logFile)) {
+            log.applied(indexFile);
+        }
+        System.out.println(classIndex.getValidRepos().size() + " valid of " +
+                classIndex.getRepoSizes().size() + " repositories");
+    }
+
+    /**
+     * Make changes to an index in the order in which they were logged. Removals that follow each
+     * other are made at once, since every removal goes through the whole index
+     * @param changes
+     * @param classIndex
+     */
+    static void apply(List<JSONObject> changes, ClassIndex classIndex) {
+        Set<String> removed = new HashSet<>();
+        for (JSONObject change: changes) {
+            if (change.containsKey("remove")) {
+                removed.add((String) change.get("remove"));
+                continue;
+            }
+            if (!removed.isEmpty()) {
+                classIndex.removeRepos(removed);
+                removed.clear();
+            }
+            String repo = (String) change.get("add");
+            for (Object clazz: (JSONArray) change.get("classes")) {
+                JSONArray declaration = (JSONArray) clazz;
+                classIndex.add(new String[]{(String) declaration.get(0),
+                        (String) declaration.get(1), repo});
+            }
+        }
+        if (!removed.isEmpty())
+            classIndex.removeRepos(removed);
+    }
+
+    /**
+     * @param logFile
+     * @return the changes after the last "applied" line of a log (none if there is no log)
+     * @throws IOException
+     */
+    static List<JSONObject> newChanges(String logFile) throws IOException {
+        List<JSONObject> changes = new ArrayList<>();
+        if (!new File(logFile).exists())
+            return changes;
+        JSONParser parser = new JSONParser();
+        try (Stream<String> lines = DataFiles.lines(logFile)) {
+            for (Iterator<String> iterator = lines.iterator(); iterator.hasNext(); ) {
+                String line = iterator.next();
+                if (line.isEmpty())
+                    continue;
+                JSONObject change;
+                try {
+                    change = (JSONObject) parser.parse(line);
+                } catch (ParseException | ClassCastException e) {
+                    throw new IOException("Malformed change in " + logFile + ": " + line, e);
+                }
+                if (change.containsKey("applied"))
+                    changes.clear();
+                else
+                    changes.add(change);
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * @param classIndex
+     * @return the {class name, package name} declarations of every repository in an index
+     */
+    private static Map<String, List<String[]>> declarationsByRepo(ClassIndex classIndex) {
+        Map<String, List<String[]>> repos = new LinkedHashMap<>();
+        for (Map.Entry<String, HashMap<String, Set<String>>> clazz:
+                classIndex.classToPackToRepo.entrySet())
+            for (Map.Entry<String, Set<String>> pack: clazz.getValue().entrySet())
+                for (String repo: pack.getValue())
+                    repos.computeIfAbsent(repo, key -> new ArrayList<>())
+                            .add(new String[]{clazz.getKey(), pack.getKey()});
+        return repos;
+    }
+}
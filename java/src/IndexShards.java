@@ -0,0 +1,295 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The class indices of single dump files (shards), and the merge of these into the global index.
+ * A shard keeps the classes of an index sorted by name, so the shards can be merged the way sorted
+ * runs are, with one class of every shard in memory rather than the whole global index.
+ *
+ * The global index has to load into the same HashMaps as the one ClassIndex.main used to build by
+ * reading all indices into one ClassIndex, because getValidRepos and SymbolSolver break ties by
+ * iteration order. A HashMap iterates over its buckets in order, and over the keys in a bucket in
+ * the order in which they were added. So every class keeps the position at which it was first
+ * added, and the shards are merged twice: by name, to combine the packages and repositories of
+ * every class, and then by bucket and position, through sorted runs of -DmergeRunClasses classes
+ * in a temporary directory, to write the classes in the order of that HashMap. The packages and
+ * repositories of a class are combined in a HashMap and HashSets, as readJson would.
+ *
+ * Shards and runs are a magic number, the number of classes and the classes, each of which is
+ * its name, its position (the number of the shard in the high 32 bits and the index of the class
+ * in the iteration order of the shard in the low ones), the number of packages and, for every
+ * package, its name, the number of repositories and their names. The packages and repositories
+ * are in iteration order.
+ */
+public class IndexShards {
+    private static final int MAGIC = 0x53485244; // "SHRD"
+    private static final int BUFFER_SIZE = 1 << 16;
+    static int runClasses = Integer.getInteger("mergeRunClasses", 1 << 18);
+
+    private static final Comparator<Entry> BY_NAME = Comparator.comparing((Entry entry) ->
+            entry.name).thenComparingLong(entry -> entry.position);
+
+    /**
+     * A class with the repositories of each of its packages
+     */
+    private static class Entry {
+        final String name;
+        final long position;
+        final Map<String, ? extends Collection<String>> packages;
+
+        Entry(String name, long position, Map<String, ? extends Collection<String>> packages) {
+            this.name = name;
+            this.position = position;
+            this.packages = packages;
+        }
+    }
+
+    private interface EntryConsumer {
+        void accept(Entry entry) throws IOException;
+    }
+
+    /**
+     * Write an index as a shard
+     * @param classIndex
+     * @param fileName compressed if it ends in .gz
+     * @throws IOException
+     */
+    public static void write(ClassIndex classIndex, String fileName) throws IOException {
+        List<Entry> entries = new ArrayList<>(classIndex.classToPackToRepo.size());
+        long position = 0;
+        for (Map.Entry<String, HashMap<String, Set<String>>> clazz:
+                classIndex.classToPackToRepo.entrySet())
+            entries.add(new Entry(clazz.getKey(), position++, clazz.getValue()));
+        entries.sort(BY_NAME);
+        write(entries, fileName);
+    }
+
+    /**
+     * Merge shards into the global index and write the repository statistics next to it (see
+     * RepoStats). Apart from the runs, the memory used depends on the number of shards and
+     * repositories only. The index is written to a new file that then replaces the old one, so
+     * it is never left half written
+     * @param shardFiles the shards, in the order in which they would be read into one index
+     * @param jsonFile   the file of the global index
+     * @throws IOException
+     */
+    public static void merge(List<String> shardFiles, String jsonFile) throws IOException {
+        long start = System.nanoTime();
+        int[] classes = {0};
+        String[] previous = {null};
+        mergeSorted(shardFiles, true, BY_NAME, entry -> {
+            if (!entry.name.equals(previous[0]))
+                classes[0]++;
+            previous[0] = entry.name;
+        });
+        int capacity = ClassIndex.capacity(classes[0]);
+        Comparator<Entry> byBucket = Comparator.comparingInt((Entry entry) ->
+                bucket(entry.name, capacity)).thenComparingLong(entry -> entry.position);
+
+        Path runDir = Files.createTempDirectory(
+                Paths.get(jsonFile).toAbsolutePath().getParent(), "merge");
+        List<String> runFiles = new ArrayList<>();
+        try {
+            HashMap<String, Integer> repoSizes = new HashMap<>();
+            List<Entry> run = new ArrayList<>();
+            List<Entry> group = new ArrayList<>(); // the entries of the class being merged
+            mergeSorted(shardFiles, true, BY_NAME, entry -> {
+                if (!group.isEmpty() && !group.get(0).name.equals(entry.name)) {
+                    run.add(combine(group, repoSizes));
+                    group.clear();
+                    if (run.size() == runClasses)
+                        writeRun(run, byBucket, runDir, runFiles);
+                }
+                group.add(entry);
+            });
+            if (!group.isEmpty())
+                run.add(combine(group, repoSizes));
+            if (!run.isEmpty())
+                writeRun(run, byBucket, runDir, runFiles);
+
+            HashSet<String> validRepos = new HashSet<>(repoSizes.keySet());
+            Path index = Paths.get(jsonFile);
+            Path newIndex = index.resolveSibling("new-" + index.getFileName());
+            try (Writer file = DataFiles.newWriter(newIndex.toString(), StandardCharsets.UTF_8)) {
+                char[] separator = {'{'};
+                mergeSorted(runFiles, false, byBucket, entry -> {
+                    file.write(separator[0]);
+                    separator[0] = ',';
+                    ClassIndex.writeClass(file, entry.name, entry.packages);
+                    ClassIndex.removeInvalidRepos(entry.packages, repoSizes, validRepos, null);
+                });
+                file.write(separator[0] == '{' ? "{}" : "}");
+            }
+            Files.move(newIndex, index, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            new RepoStats(repoSizes, validRepos).write(RepoStats.fileFor(jsonFile));
+        } finally {
+            for (String runFile: runFiles)
+                new File(runFile).delete();
+            Files.delete(runDir);
+        }
+        ClassIndex.metrics.time(PipelineMetrics.Stage.SERIALIZE, start);
+        System.out.println("Merged " + classes[0] + " classes of " + shardFiles.size() +
+                " shards through " + runFiles.size() + " runs");
+    }
+
+    /**
+     * Combine the entries of a class in different shards as readJson would
+     * @param group     the entries, by position
+     * @param repoSizes the number of classes of every repository, which is updated
+     * @return the entry of the class in the global index
+     */
+    private static Entry combine(List<Entry> group, HashMap<String, Integer> repoSizes) {
+        HashMap<String, Set<String>> packages = new HashMap<>();
+        for (Entry entry: group)
+            for (Map.Entry<String, ? extends Collection<String>> pack: entry.packages.entrySet()) {
+                packages.putIfAbsent(pack.getKey(), new HashSet<>());
+                packages.get(pack.getKey()).addAll(pack.getValue());
+            }
+        for (Set<String> repos: packages.values())
+            for (String repo: repos)
+                repoSizes.put(repo, repoSizes.getOrDefault(repo, 0) + 1);
+        return new Entry(group.get(0).name, group.get(0).position, packages);
+    }
+
+    /**
+     * Sort a run, write it to a new file in a directory and clear it
+     * @param run
+     * @param order
+     * @param runDir
+     * @param runFiles the files of the runs written so far, to which the new file is added
+     * @throws IOException
+     */
+    private static void writeRun(List<Entry> run, Comparator<Entry> order, Path runDir,
+                                 List<String> runFiles) throws IOException {
+        run.sort(order);
+        String runFile = runDir.resolve("run" + runFiles.size()).toString();
+        write(run, runFile);
+        runFiles.add(runFile);
+        run.clear();
+    }
+
+    /**
+     * @return the bucket of a key in a HashMap with capacity buckets
+     */
+    private static int bucket(String key, int capacity) {
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (capacity - 1);
+    }
+
+    /**
+     * Merge files of entries that are sorted in the same order
+     * @param fileNames
+     * @param shards    whether the files are shards, whose positions do not include the number
+     *                  of the shard yet
+     * @param order     the order of the entries in every file
+     * @param consumer  receives all entries in that order
+     * @throws IOException
+     */
+    private static void mergeSorted(List<String> fileNames, boolean shards, Comparator<Entry> order,
+                                    EntryConsumer consumer) throws IOException {
+        PriorityQueue<EntryReader> queue = new PriorityQueue<>(Math.max(fileNames.size(), 1),
+                (reader1, reader2) -> order.compare(reader1.current, reader2.current));
+        List<EntryReader> readers = new ArrayList<>();
+        try {
+            for (int i = 0; i < fileNames.size(); i++) {
+                EntryReader reader = new EntryReader(fileNames.get(i), shards ? i : 0);
+                readers.add(reader);
+                if (reader.next())
+                    queue.add(reader);
+            }
+            while (!queue.isEmpty()) {
+                EntryReader reader = queue.poll();
+                consumer.accept(reader.current);
+                if (reader.next())
+                    queue.add(reader);
+            }
+        } finally {
+            for (EntryReader reader: readers)
+                reader.close();
+        }
+    }
+
+    private static void write(List<Entry> entries, String fileName) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(DataFiles.openOutput(fileName))) {
+            out.writeInt(MAGIC);
+            out.writeInt(entries.size());
+            for (Entry entry: entries) {
+                out.writeUTF(entry.name);
+                out.writeLong(entry.position);
+                out.writeInt(entry.packages.size());
+                for (Map.Entry<String, ? extends Collection<String>> pack:
+                        entry.packages.entrySet()) {
+                    out.writeUTF(pack.getKey());
+                    out.writeInt(pack.getValue().size());
+                    for (String repo: pack.getValue())
+                        out.writeUTF(repo);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the entries of a shard or a run one by one. Many of these are open at the same time,
+     * so they have small buffers and no read-ahead (see DataFiles)
+     */
+    private static class EntryReader implements Closeable {
+        private final DataInputStream in;
+        private final long shard; // in the high 32 bits of the positions
+        private int remaining;
+        Entry current;
+
+        EntryReader(String fileName, int shard) throws IOException {
+            InputStream file = new FileInputStream(fileName);
+            try {
+                if (DataFiles.isCompressed(fileName))
+                    file = new GZIPInputStream(file, BUFFER_SIZE);
+                in = new DataInputStream(new BufferedInputStream(file, BUFFER_SIZE));
+                if (in.readInt() != MAGIC)
+                    throw new IOException("Not a class index shard: " + fileName);
+                remaining = in.readInt();
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+            this.shard = (long) shard << 32;
+        }
+
+        /**
+         * Read the next entry into current
+         * @return false at the end of the file
+         */
+        boolean next() throws IOException {
+            if (remaining == 0) {
+                current = null;
+                return false;
+            }
+            remaining--;
+            String name = in.readUTF();
+            long position = shard + in.readLong();
+            int packCount = in.readInt();
+            LinkedHashMap<String, List<String>> packages = new LinkedHashMap<>();
+            for (int i = 0; i < packCount; i++) {
+                String pack = in.readUTF();
+                int repoCount = in.readInt();
+                List<String> repos = new ArrayList<>(repoCount);
+                for (int j = 0; j < repoCount; j++)
+                    repos.add(in.readUTF());
+                packages.put(pack, repos);
+            }
+            current = new Entry(name, position, packages);
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,269 @@
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * The state of a batch run over the dump files (see Parser.main and ClassIndex.main), so that a
+ * run that is interrupted or repeated only does the work that is left. Every input file is a job
+ * with one output file. The manifest records the size, modification time and CRC-32 of every
+ * input, the output it goes to and whether the job is done:
+ *   - a job whose input and output are the same as when it was done is skipped. An input with a
+ *     new modification time but the same size is only read to compare its checksum
+ *   - the output of a job is written to a partial file next to it (partial-<name>), which
+ *     replaces the output when the job is done, so the output is never left half written
+ *   - a job can be checkpointed (see Job.checkpoint), which records how many lines of the input
+ *     have been processed and how long the partial file and the quarantine file of the output
+ *     (see ParseLimits) were at that point. A run that finds the job unfinished cuts both files
+ *     back to those lengths and continues after those lines
+ *
+ * The manifest is a json object of the jobs by input file, and it is replaced atomically every
+ * time a job changes state. Files are synced to disk before the manifest records them, so that a
+ * crash of the machine cannot leave a manifest that refers to data that was lost. Checkpoints
+ * are taken every -DcheckpointLines lines (100000 by default).
+ */
+public class JobManifest {
+    static long checkpointLines = Long.getLong("checkpointLines", 100000);
+
+    private final Path file;
+    private final JSONObject jobs;
+
+    private JobManifest(Path file, JSONObject jobs) {
+        this.file = file;
+        this.jobs = jobs;
+    }
+
+    /**
+     * Read a manifest, or start an empty one if the file does not exist
+     * @param fileName
+     * @return
+     * @throws IOException
+     */
+    public static JobManifest open(String fileName) throws IOException {
+        Path file = Paths.get(fileName);
+        if (!Files.exists(file))
+            return new JobManifest(file, new JSONObject());
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return new JobManifest(file, (JSONObject) new JSONParser().parse(reader));
+        } catch (ParseException | ClassCastException e) {
+            throw new IOException("Malformed job manifest " + fileName, e);
+        }
+    }
+
+    /**
+     * Start or continue the job of an input file
+     * @param inputFile
+     * @param outputFile
+     * @param order      how the lines of the input are processed (e.g. "input" or "repo"), or
+     *                   null if the results are not written in a fixed order, in which case the
+     *                   job cannot be continued and always starts over
+     * @return the job, or null if it is done
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized Job start(String inputFile, String outputFile, String order)
+            throws IOException {
+        File input = new File(inputFile);
+        long size = input.length();
+        long mtime = input.lastModified();
+        JSONObject job = (JSONObject) jobs.get(inputFile);
+        String checksum = null;
+        if (job != null && outputFile.equals(job.get("output")) &&
+                ((Long) job.get("size")) == size) {
+            if (((Long) job.get("mtime")) == mtime)
+                checksum = (String) job.get("crc32");
+            else if (checksum(inputFile).equals(job.get("crc32"))) { // touched, but not changed
+                checksum = (String) job.get("crc32");
+                job.put("mtime", mtime);
+                save();
+            }
+        }
+        if (checksum != null && "done".equals(job.get("state")) && new File(outputFile).exists())
+            return null;
+
+        Job started = new Job(inputFile, outputFile);
+        if (checksum != null && "running".equals(job.get("state")) && order != null &&
+                order.equals(job.get("order")) && started.partialFile().exists() &&
+                started.partialFile().length() >= (Long) job.get("bytes") &&
+                started.quarantineFile().length() >= quarantineBytes(job)) {
+            started.lines = (Long) job.get("lines");
+            try (RandomAccessFile partial = new RandomAccessFile(started.partialFile(), "rw")) {
+                partial.setLength((Long) job.get("bytes"));
+            }
+            if (started.quarantineFile().exists())
+                try (RandomAccessFile quarantine =
+                             new RandomAccessFile(started.quarantineFile(), "rw")) {
+                    quarantine.setLength(quarantineBytes(job));
+                }
+            System.out.println("Continuing " + inputFile + " after " + started.lines + " lines");
+            return started;
+        }
+        Files.deleteIfExists(started.partialFile().toPath());
+        job = new JSONObject();
+        job.put("size", size);
+        job.put("mtime", mtime);
+        job.put("crc32", checksum != null ? checksum : checksum(inputFile));
+        job.put("output", outputFile);
+        job.put("order", order);
+        job.put("state", "running");
+        job.put("lines", 0L);
+        job.put("bytes", 0L);
+        job.put("quarantineBytes", 0L);
+        jobs.put(inputFile, job);
+        save();
+        return started;
+    }
+
+    /**
+     * @return the length of the quarantine file at the last checkpoint of a job (0 for a
+     * manifest written before it was recorded)
+     */
+    private static long quarantineBytes(JSONObject job) {
+        Long bytes = (Long) job.get("quarantineBytes");
+        return bytes == null ? 0 : bytes;
+    }
+
+    /**
+     * @param fileName
+     * @return the CRC-32 of the bytes of a file, as they are on disk
+     * @throws IOException
+     */
+    static String checksum(String fileName) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[DataFiles.BUFFER_SIZE];
+        try (InputStream in = new FileInputStream(fileName)) {
+            for (int count; (count = in.read(buffer)) >= 0; )
+                crc.update(buffer, 0, count);
+        }
+        return Long.toHexString(crc.getValue());
+    }
+
+    /**
+     * Write the manifest to a new file that then replaces the old one
+     */
+    private void save() throws IOException {
+        Path newFile = file.resolveSibling("new-" + file.getFileName());
+        try (FileOutputStream out = new FileOutputStream(newFile.toFile());
+             Writer writer = new BufferedWriter(new OutputStreamWriter(out,
+                     StandardCharsets.UTF_8))) {
+            writer.write(jobs.toJSONString());
+            writer.flush();
+            out.getChannel().force(true);
+        }
+        Files.move(newFile, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(file.toAbsolutePath().getParent());
+    }
+
+    /**
+     * Write the data of a file that is already closed (or flushed) to disk
+     * @param file
+     * @throws IOException
+     */
+    static void sync(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Write the entries of a directory to disk, so that a file moved into it stays there. Not
+     * every platform can open a directory, so this is only done where it can be
+     */
+    private static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // directories cannot be opened on this platform (e.g. Windows)
+        }
+    }
+
+    /**
+     * The job of an input file that is not done yet
+     */
+    public class Job {
+        final String inputFile;
+        final String outputFile;
+        private long lines = 0; // lines processed before the last checkpoint
+
+        private Job(String inputFile, String outputFile) {
+            this.inputFile = inputFile;
+            this.outputFile = outputFile;
+        }
+
+        /**
+         * @return the file the output is written to until the job is done
+         */
+        public File partialFile() {
+            Path output = Paths.get(outputFile);
+            return output.resolveSibling("partial-" + output.getFileName()).toFile();
+        }
+
+        /**
+         * @return the file Parser writes the files of the input that exceed the parse limits to
+         * (see ParseLimits), which only exists if there are limits
+         */
+        public File quarantineFile() {
+            return new File(outputFile + ".quarantine");
+        }
+
+        /**
+         * @return the number of lines of the input that were processed before the last
+         * checkpoint, whose results are in the partial file
+         */
+        public long linesDone() {
+            return lines;
+        }
+
+        /**
+         * Record that the results of the first lines of the input are in the partial file and
+         * their quarantined files in the quarantine file, which have to be closed (or at least
+         * flushed). The files are synced to disk before their lengths are recorded
+         * @param lines the number of lines processed
+         * @throws IOException
+         */
+        @SuppressWarnings("unchecked")
+        public void checkpoint(long lines) throws IOException {
+            sync(partialFile());
+            if (quarantineFile().exists())
+                sync(quarantineFile());
+            synchronized (JobManifest.this) {
+                JSONObject job = (JSONObject) jobs.get(inputFile);
+                job.put("lines", lines);
+                job.put("bytes", partialFile().length());
+                job.put("quarantineBytes", quarantineFile().length());
+                save();
+            }
+            this.lines = lines;
+        }
+
+        /**
+         * Replace the output with the partial file and record that the job is done
+         * @throws IOException
+         */
+        @SuppressWarnings("unchecked")
+        public void done() throws IOException {
+            sync(partialFile());
+            Files.move(partialFile().toPath(), Paths.get(outputFile),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory(Paths.get(outputFile).toAbsolutePath().getParent());
+            synchronized (JobManifest.this) {
+                JSONObject job = (JSONObject) jobs.get(inputFile);
+                job.put("state", "done");
+                job.remove("lines");
+                job.remove("bytes");
+                job.remove("quarantineBytes");
+                save();
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * A helper that processes the lines of a file with a three-stage pipeline: the calling thread
+ * reads the lines and cuts them into batches, a pool of worker threads processes the batches and
+ * a writer thread hands the results to a consumer, either in the order of the lines in the file
+ * or in the order in which the batches are finished
+ */
+public class ParallelLines {
+    static final int BATCH_SIZE = 256; // number of lines given to a worker at once
+    static final int BATCHES_PER_WORKER = 4; // how many batches a worker can have queued
+
+    /**
+     * Same as process(lines, workers, true, workerState, function, consumer)
+     */
+    public static <L, S, R> void process(Stream<L> lines, int workers, Supplier<S> workerState,
+                                         BiFunction<S, L, R> function, Consumer<R> consumer) {
+        process(lines, workers, true, workerState, function, consumer);
+    }
+
+    /**
+     * Apply a function to every line and pass the results to a consumer. Each worker thread gets
+     * its own state object (e.g. a JavaParser), so that the function does not have to be
+     * thread-safe with respect to it. The consumer is only ever called from the writer thread.
+     * At most workers * BATCHES_PER_WORKER batches are read but not yet consumed at any time, so
+     * the reader blocks when the workers or the writer fall behind.
+     * @param lines       the lines to process (Strings, or byte arrays from BigQueryLines)
+     * @param workers     the number of worker threads
+     * @param ordered     if true, the results are consumed in the order of the lines
+     * @param workerState creates the per-thread state passed to the function
+     * @param function    the function to apply to every line
+     * @param consumer    receives the results
+     */
+    public static <L, S, R> void process(Stream<L> lines, int workers, boolean ordered,
+                                         Supplier<S> workerState, BiFunction<S, L, R> function,
+                                         Consumer<R> consumer) {
+        ThreadLocal<S> state = ThreadLocal.withInitial(workerState);
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        Semaphore inFlight = new Semaphore(workers * BATCHES_PER_WORKER);
+        BlockingQueue<Future<List<R>>> queue = new LinkedBlockingQueue<>();
+        CompletableFuture<List<R>> end = new CompletableFuture<>();
+        WriterThread<R> writer = new WriterThread<>(queue, end, inFlight, consumer);
+        writer.start();
+        try {
+            Iterator<L> iterator = lines.iterator();
+            while (iterator.hasNext() && writer.failure == null) {
+                List<L> batch = new ArrayList<>(BATCH_SIZE);
+                while (iterator.hasNext() && batch.size() < BATCH_SIZE)
+                    batch.add(iterator.next());
+                inFlight.acquire();
+                if (ordered) {
+                    queue.add(pool.submit(() -> apply(state.get(), function, batch)));
+                } else {
+                    pool.execute(() -> {
+                        CompletableFuture<List<R>> result = new CompletableFuture<>();
+                        try {
+                            result.complete(apply(state.get(), function, batch));
+                        } catch (Throwable e) {
+                            result.completeExceptionally(e);
+                        }
+                        queue.add(result);
+                    });
+                }
+            }
+            if (!ordered) { // wait until the writer has consumed all batches
+                inFlight.acquire(workers * BATCHES_PER_WORKER);
+                inFlight.release(workers * BATCHES_PER_WORKER);
+            }
+            queue.add(end);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            pool.shutdownNow();
+        }
+        if (writer.failure != null)
+            throw new RuntimeException(writer.failure);
+    }
+
+    private static <L, S, R> List<R> apply(S state, BiFunction<S, L, R> function,
+                                           List<L> batch) {
+        List<R> results = new ArrayList<>(batch.size());
+        for (L line : batch)
+            results.add(function.apply(state, line));
+        return results;
+    }
+
+    /**
+     * The thread that takes finished batches from the queue and passes them to the consumer.
+     * After a failure it keeps taking batches (without consuming them) so that the reader does
+     * not block forever
+     */
+    static class WriterThread<R> extends Thread {
+        private final BlockingQueue<Future<List<R>>> queue;
+        private final Future<List<R>> end;
+        private final Semaphore inFlight;
+        private final Consumer<R> consumer;
+        volatile Throwable failure;
+
+        WriterThread(BlockingQueue<Future<List<R>>> queue, Future<List<R>> end,
+                     Semaphore inFlight, Consumer<R> consumer) {
+            super("ParallelLines-writer");
+            setDaemon(true); // so that a failing reader does not keep the JVM alive
+            this.queue = queue;
+            this.end = end;
+            this.inFlight = inFlight;
+            this.consumer = consumer;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (Future<List<R>> batch = queue.take(); batch != end; batch = queue.take()) {
+                    try {
+                        if (failure == null)
+                            for (R result : batch.get())
+                                consumer.accept(result);
+                    } catch (ExecutionException e) {
+                        failure = e.getCause();
+                    } catch (RuntimeException | Error e) {
+                        failure = e;
+                    }
+                    inFlight.release();
+                }
+            } catch (InterruptedException e) {
+                failure = e;
+            }
+        }
+    }
+}
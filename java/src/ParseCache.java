@@ -0,0 +1,147 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache of what was extracted from the source code of a file, keyed by a hash of the source
+ * code. The dumps contain many byte-identical files (forks, vendored copies), and for these only
+ * the steps that depend on the repository have to be done again. The size of the cache is
+ * bounded by an estimate of the memory used by the values, and the least recently used values
+ * are evicted first. The cache is turned on with -DparseCacheMB=... (0, the default, means no
+ * cache), and its hits, misses and evictions are counted in the metrics of the pipeline.
+ *
+ * The hash is the first 128 bits of the SHA-256 of the UTF-8 encoded source code, so files are
+ * never confused in practice.
+ * @param <V> the type of the values
+ */
+public class ParseCache<V> {
+    private static final ThreadLocal<MessageDigest> sha256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JVM has SHA-256
+        }
+    });
+
+    private final long capacity; // in bytes
+    private long size = 0;
+    private final LinkedHashMap<Key, Entry<V>> entries = new LinkedHashMap<>(1024, 0.75f, true);
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+
+    /**
+     * The hash of the source code of a file
+     */
+    static final class Key {
+        private final long high;
+        private final long low;
+
+        private Key(long high, long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).high == high && ((Key) o).low == low;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (low ^ (low >>> 32));
+        }
+    }
+
+    private static class Entry<V> {
+        final V value;
+        final long weight;
+
+        Entry(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * @param capacity the maximum estimated size of the values in bytes
+     * @param metrics  the metrics to count hits, misses and evictions in
+     */
+    ParseCache(long capacity, PipelineMetrics metrics) {
+        this.capacity = capacity;
+        hits = metrics.counter("parseCacheHits");
+        misses = metrics.counter("parseCacheMisses");
+        evictions = metrics.counter("parseCacheEvictions");
+    }
+
+    /**
+     * The cache set by the system properties
+     * @param metrics the metrics to count hits, misses and evictions in
+     * @return the cache, or null if there is none
+     */
+    public static <V> ParseCache<V> fromProperties(PipelineMetrics metrics) {
+        long megabytes = Long.getLong("parseCacheMB", 0);
+        return megabytes > 0 ? new ParseCache<>(megabytes << 20, metrics) : null;
+    }
+
+    /**
+     * @param content the source code of a file
+     * @return the key of the file in the cache
+     */
+    public static Key key(String content) {
+        MessageDigest digest = sha256.get();
+        ByteBuffer hash = ByteBuffer.wrap(digest.digest(content.getBytes(StandardCharsets.UTF_8)));
+        return new Key(hash.getLong(), hash.getLong());
+    }
+
+    /**
+     * @param key the key of a file
+     * @return the value cached for the file, or null (which counts as a miss)
+     */
+    public synchronized V get(Key key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.value;
+    }
+
+    /**
+     * Cache a value, evicting the least recently used ones if the cache becomes too large
+     * @param key    the key of a file
+     * @param value  what was extracted from the file, which must not be changed afterwards
+     * @param weight an estimate of the memory used by the value in bytes
+     */
+    public synchronized void put(Key key, V value, long weight) {
+        if (weight > capacity)
+            return;
+        Entry<V> previous = entries.put(key, new Entry<>(value, weight));
+        if (previous != null)
+            size -= previous.weight;
+        size += weight;
+        Iterator<Entry<V>> iterator = entries.values().iterator();
+        while (size > capacity) {
+            size -= iterator.next().weight;
+            iterator.remove();
+            evictions.increment();
+        }
+    }
+
+    /**
+     * @return a line about the use of the cache so far
+     */
+    public synchronized String report() {
+        long hitCount = hits.sum();
+        long lookups = hitCount + misses.sum();
+        return String.format("Parse cache: %d hits of %d lookups (%.1f%%), %d entries, %d of %d " +
+                        "MB, %d evictions", hitCount, lookups,
+                lookups == 0 ? 0.0 : 100.0 * hitCount / lookups, entries.size(), size >> 20,
+                capacity >> 20, evictions.sum());
+    }
+}
@@ -0,0 +1,230 @@
+import com.github.javaparser.JavaParser;
+import com.github.javaparser.ParseProblemException;
+import com.github.javaparser.ParseResult;
+import com.github.javaparser.ParseStart;
+import com.github.javaparser.Provider;
+import com.github.javaparser.Providers;
+import com.github.javaparser.ast.CompilationUnit;
+import org.json.simple.JSONObject;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Limits on the size of the files that are parsed and on the time a parse may take, so that a
+ * few huge generated files or deeply nested expressions cannot stall a whole dump file. Files
+ * that exceed a limit are not processed, but written to a quarantine file (one json object per
+ * line, with the repository, the path and the reason) so that they can be looked at later.
+ * The limits are set with -DmaxContentChars=... and -DparseTimeoutMillis=... (0, the default,
+ * means no limit).
+ *
+ * A parse is abandoned cooperatively: JavaParser reads the source through a Provider that hands
+ * it out in small chunks and stops giving out more once the time is up. This cannot interrupt
+ * work on the chunks already read, so the time limit is a soft one.
+ *
+ * Worker threads that run ahead of the output can defer writing the files they quarantine until
+ * their results are written (see defer and release), so that the quarantine file is in the order
+ * of the input and a checkpoint of the output (see JobManifest) is also one of the quarantine file.
+ */
+public class ParseLimits implements Closeable {
+    static final ParseLimits NONE = new ParseLimits(0, 0, null);
+    private static final int CHUNK_SIZE = 1024; // the deadline is checked every CHUNK_SIZE chars
+
+    private final int maxChars;
+    private final long timeoutNanos;
+    private final Writer quarantine; // null if there are no limits
+    final LongAdder quarantined = new LongAdder();
+    private final ThreadLocal<List<String>> deferred = new ThreadLocal<>(); // see defer
+
+    /**
+     * Thrown by parse when a file exceeds one of the limits
+     */
+    static class LimitExceeded extends RuntimeException {
+        final String limit; // "size" or "time"
+
+        LimitExceeded(String limit, String details) {
+            super(limit + " " + details, null, false, false); // thrown often, no stack trace
+            this.limit = limit;
+        }
+    }
+
+    private ParseLimits(int maxChars, long timeoutMillis, Writer quarantine) {
+        this.maxChars = maxChars;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.quarantine = quarantine;
+    }
+
+    /**
+     * The limits given by the system properties
+     * @param quarantineFile where to write the files that exceed them (only created if there
+     *                       are limits)
+     * @return
+     * @throws IOException
+     */
+    public static ParseLimits fromProperties(String quarantineFile) throws IOException {
+        return fromProperties(quarantineFile, false);
+    }
+
+    /**
+     * The result of work whose quarantined files are not written yet
+     */
+    static class Deferred<T> {
+        private final T result;
+        private final List<String> entries;
+
+        private Deferred(T result, List<String> entries) {
+            this.result = result;
+            this.entries = entries;
+        }
+    }
+
+    /**
+     * Same as fromProperties(quarantineFile), but the quarantine file can be appended to, for
+     * a job that continues after a checkpoint (see JobManifest)
+     * @param quarantineFile
+     * @param append         if true, the files that exceed the limits are added to the file
+     * @return
+     * @throws IOException
+     */
+    public static ParseLimits fromProperties(String quarantineFile, boolean append)
+            throws IOException {
+        int maxChars = Integer.getInteger("maxContentChars", 0);
+        long timeoutMillis = Long.getLong("parseTimeoutMillis", 0);
+        if (maxChars <= 0 && timeoutMillis <= 0)
+            return NONE;
+        return new ParseLimits(maxChars, timeoutMillis,
+                new BufferedWriter(new FileWriter(quarantineFile, append)));
+    }
+
+    /**
+     * Parse the source code of a file within the limits
+     * @param javaParser the parser to use (with its own configuration)
+     * @param content    the source code
+     * @return the compilation unit
+     * @throws LimitExceeded if the file is too long or could not be parsed in time
+     * @throws ParseProblemException if the file could not be parsed
+     */
+    public CompilationUnit parse(JavaParser javaParser, String content) {
+        if (maxChars > 0 && content.length() > maxChars)
+            throw new LimitExceeded("size", String.valueOf(content.length()));
+        DeadlineProvider deadlineProvider = timeoutNanos > 0 ?
+                new DeadlineProvider(content, System.nanoTime() + timeoutNanos) : null;
+        ParseResult<CompilationUnit> result = javaParser.parse(ParseStart.COMPILATION_UNIT,
+                deadlineProvider != null ? deadlineProvider : Providers.provider(content));
+        // the parser saw an early end of the file, so the result does not matter
+        if (deadlineProvider != null && deadlineProvider.expired)
+            throw new LimitExceeded("time", TimeUnit.NANOSECONDS.toMillis(timeoutNanos) +
+                    " ms after " + deadlineProvider.position + " of " + content.length() +
+                    " chars");
+        if (!result.isSuccessful())
+            throw new ParseProblemException(result.getProblems());
+        return result.getResult().get();
+    }
+
+    /**
+     * Record a file that exceeded a limit
+     * @param file   the file as a json object from a BigQuery dump
+     * @param reason the message of the LimitExceeded
+     */
+    public void quarantine(JSONObject file, String reason) {
+        quarantined.increment();
+        JSONObject entry = new JSONObject();
+        entry.put("repo", file.get("repo_name"));
+        entry.put("path", file.get("path"));
+        entry.put("reason", reason);
+        List<String> entries = deferred.get();
+        if (entries != null)
+            entries.add(entry.toString());
+        else
+            write(entry.toString());
+    }
+
+    private synchronized void write(String entry) { // called from worker threads
+        try {
+            quarantine.write(entry);
+            quarantine.write('\n');
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Do some work on the calling thread, keeping the files it quarantines until its result is
+     * released
+     * @param work
+     * @return the result of the work with the files it quarantined
+     */
+    <T> Deferred<T> defer(Supplier<T> work) {
+        List<String> entries = new ArrayList<>();
+        deferred.set(entries);
+        try {
+            return new Deferred<>(work.get(), entries);
+        } finally {
+            deferred.remove();
+        }
+    }
+
+    /**
+     * Write the files quarantined by deferred work
+     * @param work the result of defer
+     * @return the result of the work
+     */
+    <T> T release(Deferred<T> work) {
+        for (String entry: work.entries)
+            write(entry);
+        return work.result;
+    }
+
+    /**
+     * Write the quarantined files to the quarantine file, e.g. for a checkpoint
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        if (quarantine != null)
+            quarantine.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (quarantine != null)
+            quarantine.close();
+    }
+
+    /**
+     * Hands out the source code in chunks and reports the end of the input once the deadline has
+     * passed
+     */
+    static class DeadlineProvider implements Provider {
+        private final String content;
+        private final long deadline;
+        int position = 0;
+        boolean expired = false;
+
+        DeadlineProvider(String content, long deadline) {
+            this.content = content;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            if (position == content.length())
+                return -1;
+            if (System.nanoTime() > deadline) {
+                expired = true;
+                return -1;
+            }
+            int count = Math.min(Math.min(length, CHUNK_SIZE), content.length() - position);
+            content.getChars(position, position + count, buffer, offset);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
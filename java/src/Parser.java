@@ -1,10 +1,19 @@
 import com.github.javaparser.JavaParser;
+import com.github.javaparser.JavaToken;
+import com.github.javaparser.ParseStart;
+import com.github.javaparser.ParserConfiguration;
+import com.github.javaparser.Position;
+import com.github.javaparser.Providers;
+import com.github.javaparser.TokenRange;
 
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 
-import java.nio.file.Files;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
 
 import com.github.javaparser.ast.CompilationUnit;
@@ -18,10 +27,13 @@ import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Objects;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 
 /**
@@ -30,16 +42,70 @@ import java.util.stream.Collectors;
  */
 public abstract class Parser {
 
-    static final HashSet<String> validRepos = SymbolSolver.globalClassIndex.getValidRepos();
-    static long methodsTotal;
-    static long methodsWithDocs;
-    static long solvedMethodsWithDocs;
+    static final PipelineMetrics metrics = PipelineMetrics.register("Parser");
+    // striped counters, so that worker threads do not contend on them
+    static final LongAdder methodsTotal = metrics.counter("methods");
+    static final LongAdder methodsWithDocs = metrics.counter("methodsWithDocs");
+    static final LongAdder solvedMethodsWithDocs = metrics.counter("solvedMethodsWithDocs");
+    static final LongAdder linesRead = metrics.counter("lines");
+    // lines that passed the repo filter
+    static final LongAdder linesDecoded = metrics.counter("decodedLines");
+    // files that cannot produce records
+    static final LongAdder filesSkipped = metrics.counter("skippedFiles");
+    static final LongAdder recordsWritten = metrics.counter("records");
+    // only used to check whether skipped files parse (see mayHaveRecords), so no tokens
+    private static final ThreadLocal<JavaParser> checkingParser = ThreadLocal.withInitial(() ->
+            new JavaParser(new ParserConfiguration().setStoreTokens(false)));
+    // collect the solver context and the methods in one traversal of the AST
+    static boolean fusedTraversal = Boolean.getBoolean("fusedTraversal");
+    // cut the source of methods out of the file instead of joining their tokens
+    static boolean sliceSource = Boolean.getBoolean("sliceSource");
+    // what was extracted from files by their content, null if there is no cache
+    static ParseCache<ParsedFile> parseCache = ParseCache.fromProperties(metrics);
+    // sort the lines by repository first and solve the files of a repository with one
+    // RepoContext, so the records are grouped by repository instead of in the order of the input
+    static boolean groupByRepo = Boolean.getBoolean("groupByRepo");
+    // Parser.main writes binary records (see BinaryRecords) instead of json lines
+    static boolean binaryRecords = Boolean.getBoolean("binaryRecords");
+
+    /**
+     * The repositories that methods are extracted from (see ClassIndex.getValidRepos), loaded on
+     * first use from the statistics saved next to the class index (see RepoStats), or computed
+     * from the index if there are none
+     */
+    static class ValidRepos {
+        static final Set<String> repos = load("../data/classIndex.json");
+
+        private static Set<String> load(String indexFile) {
+            RepoStats stats = RepoStats.load(indexFile);
+            if (stats != null)
+                return stats.getValidRepos();
+            return SymbolSolver.globalClassIndex.getValidRepos();
+        }
+    }
 
     public static void main(String[] args) {
         String dirIn =  "/Volumes/My Passport/import_prediction/data/GitHubOriginal";
         String dirOut = "/Volumes/My Passport/typePrediction/data/Parsed2";
-        for (String fileName: new File(dirIn).list())
-            processBigQueryFile(dirIn + "/" + fileName, dirOut + "/" + fileName);
+        int workers = Integer.getInteger("workers", 1); // number of parse/solve threads
+        boolean ordered = !Boolean.getBoolean("unordered"); // keep the order of the input lines
+        // files done in an earlier run are skipped, and an interrupted file is continued
+        try {
+            JobManifest manifest = JobManifest.open(dirOut + "/manifest.json");
+            for (String fileName: new File(dirIn).list()) {
+                String outputFile = dirOut + "/" + (binaryRecords ?
+                        BinaryRecords.fileFor(fileName) : fileName);
+                JobManifest.Job job = manifest.start(dirIn + "/" + fileName, outputFile,
+                        ordered ? (groupByRepo ? "repo" : "input") : null);
+                if (job == null)
+                    System.out.println("Skipping " + fileName + ", which is done");
+                else
+                    processBigQueryFile(dirIn + "/" + fileName, job, workers, ordered);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        metrics.writeSummary(dirOut + "/metrics.json");
     }
 
     /**
@@ -49,25 +115,206 @@ public abstract class Parser {
      * @return
      */
     public static void processBigQueryFile(String inputFile, String outputFile) {
+        processBigQueryFile(inputFile, 0, -1, outputFile, null);
+    }
+
+    /**
+     * Same as processBigQueryFile(inputFile, outputFile), as a job of a batch run
+     * @param inputFile
+     * @param job       where the records go (see JSONLinesWriter) and how many lines were
+     *                  already done
+     * @param workers   the number of worker threads
+     * @param ordered   if true, the output records are in the same order as the input lines
+     */
+    public static void processBigQueryFile(String inputFile, JobManifest.Job job, int workers,
+                                           boolean ordered) {
+        if (workers <= 1)
+            processBigQueryFile(inputFile, 0, -1, job.outputFile, job);
+        else
+            processBigQueryFile(inputFile, 0, -1, job.outputFile, job, workers, ordered);
+    }
+
+    /**
+     * Same as processBigQueryFile(inputFile, outputFile, workers, true) for some of the lines of
+     * the input (see Coordinator)
+     * @param inputFile
+     * @param start      the position of the first line in the input
+     * @param end        the position after the last line
+     * @param outputFile
+     * @param workers
+     * @return false if the input could not be read or the output could not be written
+     */
+    public static boolean processBigQueryFile(String inputFile, long start, long end,
+                                              String outputFile, int workers) {
+        if (workers <= 1)
+            return processBigQueryFile(inputFile, start, end, outputFile, null);
+        return processBigQueryFile(inputFile, start, end, outputFile, null, workers, true);
+    }
+
+    /**
+     * Same as processBigQueryFile(inputFile, outputFile) for the lines between two positions in
+     * the input (end is -1 for the end of the file). If there is a job, the lines before its
+     * last checkpoint are skipped and the output is only replaced when the job is done
+     * @return true iff all lines were processed
+     */
+    private static boolean processBigQueryFile(String inputFile, long start, long end,
+                                            String outputFile, JobManifest.Job job) {
         JSONParser jsonParser = new JSONParser();
         JavaParser javaParser = new JavaParser();
-        List<JSONObject> lines = null;
-        System.out.println("Processing " + inputFile + "...");
+        System.out.println("Processing " + inputFile + range(start, end) + "...");
+        long read = linesRead.sum();
+        long decoded = linesDecoded.sum();
+        long skipped = filesSkipped.sum();
+
+        // the records are written as soon as they are extracted, so memory use does not depend
+        // on the size of the file and a crash only loses the records since the last flush
+        boolean done = false;
+        try (Stream<byte[]> lines = metrics.timeReads(end < 0 ? BigQueryLines.lines(inputFile) :
+                BigQueryLines.lines(inputFile, start, end));
+             ParseLimits limits = ParseLimits.fromProperties(outputFile + ".quarantine",
+                     job != null && job.linesDone() > 0);
+             JSONLinesWriter writer = new JSONLinesWriter(outputFile, job, limits)) {
+            long linesDone = job == null ? 0 : job.linesDone();
+            if (groupByRepo)
+                try (Stream<RepoLines.Line> grouped = groupByRepo(lines, outputFile)) {
+                    grouped.skip(linesDone)
+                            .map(line -> extractData(line.bytes, jsonParser, javaParser, limits,
+                                    line.context))
+                            .forEach(writer::writeResult);
+                }
+            else
+                lines.skip(linesDone)
+                        .map(line -> extractData(line, jsonParser, javaParser, limits))
+                        .forEach(writer::writeResult);
+            printQuarantined(limits);
+            done = true;
+        } catch (IOException | UncheckedIOException e) {
+            e.printStackTrace();
+        }
+        if (done && job != null)
+            finishJob(job);
+        printSummary(read, decoded, skipped);
+        return done;
+    }
 
+    /**
+     * Same as processBigQueryFile(inputFile, outputFile), but the files are parsed and solved by
+     * several worker threads, each with its own JSONParser and JavaParser, while the calling
+     * thread reads the input and a separate thread writes the output
+     * @param inputFile
+     * @param outputFile
+     * @param workers    the number of worker threads
+     * @param ordered    if true, the output records are in the same order as the input lines
+     */
+    public static void processBigQueryFile(String inputFile, String outputFile, int workers,
+                                           boolean ordered) {
+        if (workers <= 1)
+            processBigQueryFile(inputFile, 0, -1, outputFile, null);
+        else
+            processBigQueryFile(inputFile, 0, -1, outputFile, null, workers, ordered);
+    }
+
+    /**
+     * Same as processBigQueryFile(inputFile, outputFile, workers, ordered), with a range and a
+     * job as in processBigQueryFile(inputFile, start, end, outputFile, job). Unordered output
+     * is only checkpointed when the job is done, since the lines are not written in a fixed
+     * order
+     * @return true iff all lines were processed
+     */
+    private static boolean processBigQueryFile(String inputFile, long start, long end,
+                                            String outputFile, JobManifest.Job job, int workers,
+                                            boolean ordered) {
+        System.out.println("Processing " + inputFile + range(start, end) + " with " + workers +
+                " workers...");
+        long read = linesRead.sum();
+        long decoded = linesDecoded.sum();
+        long skipped = filesSkipped.sum();
+
+        boolean done = false;
+        try (Stream<byte[]> lines = metrics.timeReads(end < 0 ? BigQueryLines.lines(inputFile) :
+                BigQueryLines.lines(inputFile, start, end));
+             ParseLimits limits = ParseLimits.fromProperties(outputFile + ".quarantine",
+                     job != null && job.linesDone() > 0);
+             JSONLinesWriter writer = new JSONLinesWriter(outputFile, job, limits)) {
+            long linesDone = job == null ? 0 : job.linesDone();
+            // the workers run ahead of the writer, so the files they quarantine are only written
+            // with the records, which keeps the quarantine file in step with the checkpoints
+            Consumer<ParseLimits.Deferred<JSONObject>> consumer = ordered ?
+                    result -> writer.writeResult(limits.release(result)) : result -> {
+                JSONObject obj = limits.release(result);
+                if (obj != null)
+                    writer.write(obj);
+            };
+            if (groupByRepo)
+                try (Stream<RepoLines.Line> grouped = groupByRepo(lines, outputFile)) {
+                    ParallelLines.process(grouped.skip(linesDone), workers, ordered,
+                            () -> new ClassIndex.Parsers(new JSONParser(), new JavaParser()),
+                            (parsers, line) -> limits.defer(() -> extractData(line.bytes,
+                                    parsers.jsonParser, parsers.javaParser, limits,
+                                    line.context)),
+                            consumer);
+                }
+            else
+                ParallelLines.process(lines.skip(linesDone), workers, ordered,
+                        () -> new ClassIndex.Parsers(new JSONParser(), new JavaParser()),
+                        (parsers, line) -> limits.defer(() -> extractData(line,
+                                parsers.jsonParser, parsers.javaParser, limits)),
+                        consumer);
+            printQuarantined(limits);
+            done = true;
+        } catch (IOException | UncheckedIOException e) {
+            e.printStackTrace();
+        }
+        if (done && job != null)
+            finishJob(job);
+        printSummary(read, decoded, skipped);
+        return done;
+    }
+
+    private static String range(long start, long end) {
+        return end < 0 ? "" : " from byte " + start + " to " + end;
+    }
+
+    private static void finishJob(JobManifest.Job job) {
         try {
-            lines = Files.lines(Paths.get(inputFile))
-                    .map(file -> parseJSON(jsonParser, file))
-                    .map(file -> extractData(file, javaParser))
-                    .filter(Objects::nonNull)
-                    .collect(Collectors.toList()); // get the list of files
+            job.done();
         } catch (IOException e) {
             e.printStackTrace();
         }
+    }
 
-        saveJSON(lines, outputFile);
+    private static void printSummary(long read, long decoded, long skipped) {
+        System.out.println("Decoded " + (linesDecoded.sum() - decoded) + " of " +
+                (linesRead.sum() - read) + " lines, skipped " + (filesSkipped.sum() - skipped) +
+                " files without classes or Javadoc comments");
+        if (parseCache != null)
+            System.out.println(parseCache.report());
         System.out.println(methodsTotal + " " + methodsWithDocs + " " + solvedMethodsWithDocs);
     }
 
+    /**
+     * The lines of a dump file grouped by repository (see RepoLines). The lines of repositories
+     * that are not valid are counted as read and dropped before they are sorted
+     * @param lines      the lines of the dump file
+     * @param outputFile the runs of the sort are kept next to it
+     * @return
+     * @throws IOException
+     */
+    private static Stream<RepoLines.Line> groupByRepo(Stream<byte[]> lines, String outputFile)
+            throws IOException {
+        return RepoLines.group(lines, repo -> {
+            if (ValidRepos.repos.contains(repo))
+                return true;
+            linesRead.increment();
+            return false;
+        }, Paths.get(outputFile).toAbsolutePath().getParent());
+    }
+
+    private static void printQuarantined(ParseLimits limits) {
+        if (limits != ParseLimits.NONE)
+            System.out.println("Quarantined " + limits.quarantined.sum() +
+                    " files that exceeded the parse limits");
+    }
 
     /***
      * A wrapper around jsonParser.parse with exception caught (so that it can be used in a stream)
@@ -90,7 +337,7 @@ public abstract class Parser {
      * @param outputFile
      */
     public static void saveJSON(List<JSONObject> objects, String outputFile) {
-        try (FileWriter file = new FileWriter(outputFile)) {
+        try (Writer file = DataFiles.newWriter(outputFile, Charset.defaultCharset())) {
             for (JSONObject obj: objects)
                 file.write(obj.toString() + '\n');
         } catch (IOException e) {
@@ -98,6 +345,108 @@ public abstract class Parser {
         }
     }
 
+    /**
+     * Writes json objects to a file one per line, or as binary records if the name of the file
+     * ends in .rec or .rec.gz (see BinaryRecords), flushing the output every FLUSH_INTERVAL lines
+     */
+    static class JSONLinesWriter implements Closeable {
+        static final int FLUSH_INTERVAL = 1000;
+        private final String fileName;
+        private final JobManifest.Job job; // null if the output is not checkpointed
+        private final ParseLimits limits; // flushed for a checkpoint
+        private Writer writer; // null for binary records
+        private BinaryRecords.Writer records; // null for json lines
+        private long written = 0;
+        private long lines; // lines whose results have been written (see writeResult)
+
+        JSONLinesWriter(String outputFile) throws IOException {
+            this(outputFile, null, ParseLimits.NONE);
+        }
+
+        /**
+         * A writer for the output of a job, which appends to what the job wrote before its last
+         * checkpoint in the partial file of the job
+         * @param outputFile the file to write if there is no job
+         * @param job        the job, or null
+         * @param limits     the limits the records are extracted with, whose quarantine file is
+         *                   checkpointed with the output
+         * @throws IOException
+         */
+        JSONLinesWriter(String outputFile, JobManifest.Job job, ParseLimits limits)
+                throws IOException {
+            this.job = job;
+            this.limits = limits;
+            fileName = job == null ? outputFile : job.partialFile().getPath();
+            lines = job == null ? 0 : job.linesDone();
+            open(job != null);
+        }
+
+        private void open(boolean append) throws IOException {
+            if (BinaryRecords.isBinary(fileName))
+                records = new BinaryRecords.Writer(DataFiles.openOutput(fileName, append));
+            else
+                writer = DataFiles.newWriter(fileName, Charset.defaultCharset(), append);
+        }
+
+        /**
+         * Write a single object (can be used in a stream, hence the unchecked exception)
+         * @param obj
+         */
+        void write(JSONObject obj) {
+            long start = System.nanoTime();
+            try {
+                if (records != null) {
+                    records.write(obj);
+                } else {
+                    writer.write(obj.toString());
+                    writer.write('\n');
+                }
+                if (++written % FLUSH_INTERVAL == 0)
+                    flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            recordsWritten.increment();
+            metrics.time(PipelineMetrics.Stage.SERIALIZE, start);
+        }
+
+        /**
+         * Write the result of the next line of the input and, every JobManifest.checkpointLines
+         * lines, checkpoint the job. The file is closed and opened again for a checkpoint, so
+         * that a compressed file is complete up to it
+         * @param obj the record extracted from the line, or null if there is none
+         */
+        void writeResult(JSONObject obj) {
+            if (obj != null)
+                write(obj);
+            if (++lines % JobManifest.checkpointLines != 0 || job == null)
+                return;
+            try {
+                close();
+                limits.flush();
+                job.checkpoint(lines);
+                open(true); // binary records start a new segment
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void flush() throws IOException {
+            if (records != null)
+                records.flush();
+            else
+                writer.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (records != null)
+                records.close();
+            else
+                writer.close();
+        }
+    }
+
     /**
      * Initializes a json object to write the data extracted from a single Java file to.
      * @param obj  the object from the original .json file (unparsed)
@@ -111,6 +460,44 @@ public abstract class Parser {
     }
 
 
+    /**
+     * Same as extractData(parseJSON(jsonParser, line), javaParser, limits), but the name of the
+     * repository is read first, and the rest of the line is only decoded if that repository is
+     * valid
+     * @param line        a line of a .json file as UTF-8 bytes
+     * @param jsonParser  the JSONParser to use
+     * @param javaParser  the Parser object to use
+     * @param limits      the limits on parsing the file
+     * @return
+     */
+    public static JSONObject extractData(byte[] line, JSONParser jsonParser,
+                                         JavaParser javaParser, ParseLimits limits) {
+        return extractData(line, jsonParser, javaParser, limits, null);
+    }
+
+    /**
+     * Same as extractData(line, jsonParser, javaParser, limits), but the file is solved with the
+     * context of its repository
+     * @param context the context of the repository of the line, or null
+     */
+    static JSONObject extractData(byte[] line, JSONParser jsonParser, JavaParser javaParser,
+                                  ParseLimits limits, RepoContext context) {
+        long start = System.nanoTime();
+        linesRead.increment();
+        String repo = context != null ? context.repo :
+                BigQueryLines.stringField(line, "repo_name");
+        if (repo != null && !ValidRepos.repos.contains(repo)) {
+            metrics.time(PipelineMetrics.Stage.DECODE, start);
+            return null;
+        }
+        linesDecoded.increment(); // also lines without a readable repo_name, to be safe
+        JSONObject obj = parseJSON(jsonParser, new String(line, StandardCharsets.UTF_8));
+        metrics.time(PipelineMetrics.Stage.DECODE, start);
+        JSONObject data = extractData(obj, javaParser, limits, context);
+        metrics.fileDone(start);
+        return data;
+    }
+
     /**
      * Use Java Parser to extract relevant information from a single Java file
      * @param obj         Java file as a json object (one of many in a .json file)
@@ -118,35 +505,368 @@ public abstract class Parser {
      * @return
      */
     public static JSONObject extractData(JSONObject obj, JavaParser javaParser) {
+        return extractData(obj, javaParser, ParseLimits.NONE);
+    }
+
+    /**
+     * Same as extractData(obj, javaParser), but files that exceed the limits are not parsed
+     * and are quarantined instead
+     * @param obj         Java file as a json object (one of many in a .json file)
+     * @param javaParser  the Parser object to use
+     * @param limits      the limits on parsing the file
+     * @return
+     */
+    public static JSONObject extractData(JSONObject obj, JavaParser javaParser,
+                                         ParseLimits limits) {
+        return extractData(obj, javaParser, limits, null);
+    }
+
+    /**
+     * Same as extractData(obj, javaParser, limits), but the file is solved with the context of
+     * its repository
+     * @param context the context of the repository of the file, or null
+     */
+    static JSONObject extractData(JSONObject obj, JavaParser javaParser, ParseLimits limits,
+                                  RepoContext context) {
         JSONObject data = constructEmpyTable(obj);
-        if (!validRepos.contains((String) data.get("repo")))
+        if (!ValidRepos.repos.contains((String) data.get("repo")))
             return null;
 
         if (obj.get("content") == null) {  // if the file contains no code, do not attempt parsing
-            System.out.println("File is empty");
+            metrics.failure("empty file");
             return null;
         }
 
+        boolean skip = !mayHaveRecords((String) obj.get("content"));
+        if (skip)
+            filesSkipped.increment();
+        if (parseCache != null)
+            return extractCached(obj, data, javaParser, limits, skip, context);
+
+        long time = System.nanoTime();
         CompilationUnit ast;
         try {
-            ast = javaParser.parse((String) obj.get("content"));
+            // a file that cannot be parsed still gets an (empty) record, so the files that are
+            // skipped are parsed too, but only to check that they parse
+            ast = limits.parse(skip ? checkingParser.get() : javaParser,
+                    (String) obj.get("content"));
+        } catch (ParseLimits.LimitExceeded e) {
+            metrics.failure("quarantined: " + e.limit);
+            limits.quarantine(obj, e.getMessage());
+            return null;
         } catch (Exception e) {
-            System.out.println("Bad Java parse error"); // if parsing failed, return an empty object
+            metrics.failure("parse error"); // if parsing failed, return an empty object
             return data;
         } catch (AssertionError e) {
-            System.out.println("Very bad Java parse error");
+            metrics.failure("parser assertion error");
             return data;
+        } finally {
+            time = metrics.time(PipelineMetrics.Stage.PARSE, time);
+        }
+        if (skip)
+            return null;
+
+        SourceText sourceText = sliceSource ? new SourceText((String) obj.get("content")) : null;
+        if (fusedTraversal) { // a single traversal of the AST
+            // without the context, which the cache would otherwise keep from being dropped
+            SymbolSolver symbolSolver = new SymbolSolver((String) data.get("repo"));
+            FusedCollector collector = new FusedCollector(sourceText);
+            collector.visit(ast, symbolSolver);
+            symbolSolver.finish();
+            new DataCollector(symbolSolver).replay(collector.events, data);
+        } else {
+            SymbolSolver symbolSolver = new SymbolSolver((String) data.get("repo"), context, ast);
+
+            DataCollector visitor = new DataCollector(symbolSolver, sourceText);
+            visitor.visit(ast, data);
+        }
+        metrics.time(PipelineMetrics.Stage.SOLVE, time);
+        if (((JSONObject) data.get("classes")).isEmpty())
+            return null;
+        return data;
+    }
+
+    /**
+     * The rest of extractData(obj, javaParser, limits) when there is a parse cache: a file whose
+     * content has been seen before is not parsed again, only solved for its repository. Files
+     * are always collected in a single traversal (see fusedTraversal), since the cache keeps the
+     * events of a FusedCollector
+     * @param obj        Java file as a json object
+     * @param data       the empty record of the file
+     * @param javaParser the Parser object to use
+     * @param limits     the limits on parsing the file
+     * @param skip       true if the file cannot produce records (see mayHaveRecords)
+     * @param context    the context of the repository of the file, or null
+     * @return
+     */
+    private static JSONObject extractCached(JSONObject obj, JSONObject data, JavaParser javaParser,
+                                            ParseLimits limits, boolean skip,
+                                            RepoContext context) {
+        String content = (String) obj.get("content");
+        long time = System.nanoTime();
+        ParseCache.Key key = ParseCache.key(content);
+        ParsedFile parsed = parseCache.get(key);
+        boolean cached = parsed != null;
+        CompilationUnit ast = null;
+        if (!cached) {
+            try {
+                ast = limits.parse(skip ? checkingParser.get() : javaParser, content);
+                if (skip)
+                    parsed = ParsedFile.PARSES;
+            } catch (ParseLimits.LimitExceeded e) { // not cached, the time limit may vary
+                metrics.failure("quarantined: " + e.limit);
+                limits.quarantine(obj, e.getMessage());
+                metrics.time(PipelineMetrics.Stage.PARSE, time);
+                return null;
+            } catch (Exception e) {
+                parsed = new ParsedFile("parse error");
+            } catch (AssertionError e) {
+                parsed = new ParsedFile("parser assertion error");
+            }
         }
+        time = metrics.time(PipelineMetrics.Stage.PARSE, time);
 
-        SymbolSolver symbolSolver = new SymbolSolver((String) data.get("repo"), ast);
+        if (parsed == null) {
+            // without the context, which the cache would otherwise keep from being dropped
+            SymbolSolver symbolSolver = new SymbolSolver((String) data.get("repo"));
+            FusedCollector collector = new FusedCollector(sliceSource ?
+                    new SourceText(content) : null);
+            collector.visit(ast, symbolSolver);
+            symbolSolver.finish();
+            parsed = new ParsedFile(symbolSolver, collector.events);
+        }
+        if (!cached)
+            parseCache.put(key, parsed, parsed.weight());
+        if (parsed.failure != null) {
+            metrics.failure(parsed.failure); // if parsing failed, return an empty object
+            return data;
+        }
+        if (skip)
+            return null;
 
-        DataCollector visitor = new DataCollector(symbolSolver);
-        visitor.visit(ast, data);
+        SymbolSolver symbolSolver = parsed.solver.forRepo((String) data.get("repo"), context);
+        new DataCollector(symbolSolver).replay(parsed.events, data);
+        metrics.time(PipelineMetrics.Stage.SOLVE, time);
         if (((JSONObject) data.get("classes")).isEmpty())
             return null;
         return data;
     }
 
+    /**
+     * What the parse cache keeps for a file: why it could not be parsed, or the events of a
+     * FusedCollector and the solver it filled, whose context does not depend on the repository
+     * apart from the wildcard imports (see SymbolSolver.forRepo)
+     */
+    static class ParsedFile {
+        static final ParsedFile PARSES = new ParsedFile(null, null, null); // skipped files
+        final String failure; // null if the file parsed
+        final SymbolSolver solver; // never used to solve, only copied
+        final List<Event> events;
+
+        ParsedFile(String failure) {
+            this(failure, null, null);
+        }
+
+        ParsedFile(SymbolSolver solver, List<Event> events) {
+            this(null, solver, events);
+        }
+
+        private ParsedFile(String failure, SymbolSolver solver, List<Event> events) {
+            this.failure = failure;
+            this.solver = solver;
+            this.events = events;
+        }
+
+        /**
+         * @return a rough estimate of the memory used by the cached data in bytes
+         */
+        long weight() {
+            long weight = 64;
+            if (solver != null)
+                weight += solver.contextWeight();
+            if (events != null)
+                for (Event event: events)
+                    weight += 32 + (event.method != null ? event.method.weight() : 0);
+            return weight;
+        }
+    }
+
+    /**
+     * A quick check of the source code of a file. Records are only made for methods with Javadoc
+     * comments in classes or interfaces, so a file without "/**" or without the words "class" and
+     * "interface" cannot produce one. Unicode escapes could hide either, so files with them are
+     * always parsed
+     * @param content the source code
+     * @return false if the file certainly produces no record (if it parses)
+     */
+    static boolean mayHaveRecords(String content) {
+        return content.contains("\\u") || (content.contains("/**") &&
+                (content.contains("class") || content.contains("interface")));
+    }
+
+    /**
+     * The source code of a file together with the offsets at which its lines start, so that the
+     * text of a token range can be taken from it directly instead of joining the text of every
+     * token in the range (which is what TokenRange.toString does)
+     */
+    static class SourceText {
+        private final String content;
+        private int[] lineStarts; // the offset of the first character of every line
+
+        SourceText(String content) {
+            this.content = content;
+        }
+
+        /**
+         * Lines end with \n, \r\n or \r, the same as in JavaParser. Only done when the first
+         * range is looked up, since most files have no method worth recording
+         */
+        private void findLines() {
+            int[] starts = new int[64];
+            int lines = 1; // starts[0] = 0
+            for (int i = 0; i < content.length(); i++) {
+                char c = content.charAt(i);
+                if (c == '\r' && i + 1 < content.length() && content.charAt(i + 1) == '\n')
+                    i++;
+                else if (c != '\n' && c != '\r')
+                    continue;
+                if (lines == starts.length)
+                    starts = Arrays.copyOf(starts, lines * 2);
+                starts[lines++] = i + 1;
+            }
+            lineStarts = Arrays.copyOf(starts, lines);
+        }
+
+        private int offset(Position position) {
+            if (position.line < 1 || position.line > lineStarts.length || position.column < 1)
+                return -1;
+            return lineStarts[position.line - 1] + position.column - 1;
+        }
+
+        /**
+         * @param range a token range of the AST parsed from this source
+         * @return the text of the range, or null if the positions of its tokens do not match the
+         * source (then TokenRange.toString has to be used)
+         */
+        String slice(TokenRange range) {
+            JavaToken begin = range.getBegin();
+            JavaToken end = range.getEnd();
+            if (!begin.getRange().isPresent() || !end.getRange().isPresent() ||
+                    begin.getText().isEmpty() || end.getText().isEmpty())
+                return null;
+            if (lineStarts == null)
+                findLines();
+            int from = offset(begin.getRange().get().begin);
+            int to = offset(end.getRange().get().end) + 1;
+            // the first and the last token have to be where their positions say they are
+            if (from < 0 || to <= from || to > content.length() ||
+                    !content.startsWith(begin.getText(), from) ||
+                    !content.startsWith(end.getText(), to - end.getText().length()))
+                return null;
+            return content.substring(from, to);
+        }
+    }
+
+    /**
+     * The information about a method declaration that DataCollector needs, taken from the AST
+     * before any type is solved
+     */
+    static class MethodRecord {
+        final String name;
+        final boolean hasJavadoc;
+        String returnType;
+        String returnDoc;
+        String[] paramNames;
+        String[] paramTypes;
+        String[] paramDocs;
+        String docstring;
+        String source; // null if the declaration has no token range
+
+        /**
+         * @param id         the method declaration
+         * @param sourceText the source of the file to cut the source of the method out of, or
+         *                   null to join the tokens of the method instead
+         */
+        MethodRecord(MethodDeclaration id, SourceText sourceText) {
+            name = id.getNameAsString();
+            hasJavadoc = id.getJavadoc().isPresent();
+            if (!hasJavadoc)
+                return;
+            Javadoc javadoc = id.getJavadoc().get();
+            returnType = id.getType().asString();
+            returnDoc = getReturnDocString(javadoc);
+            int params = id.getParameters().size();
+            paramNames = new String[params];
+            paramTypes = new String[params];
+            paramDocs = new String[params];
+            for (int i = 0; i < params; i++) {
+                Parameter param = id.getParameter(i);
+                paramNames[i] = param.getNameAsString();
+                paramTypes[i] = param.getType().asString();
+                paramDocs[i] = getParamDocString(javadoc, paramNames[i]);
+            }
+            docstring = getMethodDocString(javadoc);
+            if (id.getTokenRange().isPresent()) {
+                if (sourceText != null)
+                    source = sourceText.slice(id.getTokenRange().get());
+                if (source == null)
+                    source = id.getTokenRange().get().toString();
+            }
+        }
+
+        /**
+         * @return a rough estimate of the memory used by the record in bytes
+         */
+        long weight() {
+            long chars = name.length();
+            int params = 0;
+            if (hasJavadoc) {
+                params = paramNames.length;
+                chars += returnType.length() + returnDoc.length() + docstring.length() +
+                        (source == null ? 0 : source.length());
+                for (int i = 0; i < params; i++)
+                    chars += paramNames[i].length() + paramTypes[i].length() +
+                            paramDocs[i].length();
+            }
+            return 2 * chars + 48 * (7 + 3 * params);
+        }
+
+        private static String getMethodDocString(Javadoc javadoc) {
+            return javadoc.getDescription().toText();
+        }
+
+        private static String getParamDocString(Javadoc javadoc, String paramName) {
+            for (JavadocBlockTag block:javadoc.getBlockTags())
+                if ((block.getType() ==  JavadocBlockTag.Type.PARAM) &&
+                        (block.getName().isPresent()) &&
+                        (block.getName().get().equals(paramName)))
+                    return block.getContent().toText();
+            return "";
+        }
+
+        private static String getReturnDocString(Javadoc javadoc) {
+            for (JavadocBlockTag block:javadoc.getBlockTags())
+                if (block.getType() ==  JavadocBlockTag.Type.RETURN)
+                    return block.getContent().toText();
+            return "";
+        }
+    }
+
+    /**
+     * A class declaration, the end of one, or a method declaration, in the order in which
+     * DataCollector would visit them
+     */
+    static class Event {
+        static final Event EXIT_CLASS = new Event(null, null);
+        final String className; // set for the start of a class declaration
+        final MethodRecord method; // set for a method declaration
+
+        Event(String className, MethodRecord method) {
+            this.className = className;
+            this.method = method;
+        }
+    }
+
     /**
      * A visitor class that fills a json object with information extracted from teh AST
      */
@@ -156,8 +876,15 @@ public abstract class Parser {
         private String currectClass = "";
         private JSONObject classObject = new JSONObject();
 
+        private final SourceText sourceText; // null to take the source of methods from tokens
+
         DataCollector(SymbolSolver solver) {
+            this(solver, null);
+        }
+
+        DataCollector(SymbolSolver solver, SourceText sourceText) {
             this.solver = solver;
+            this.sourceText = sourceText;
         }
 
         /**
@@ -169,96 +896,147 @@ public abstract class Parser {
          */
         @Override
         public void visit(ClassOrInterfaceDeclaration id, JSONObject data) {
-            classObject = new JSONObject();
             String previousClass = currectClass;
-            currectClass = solver.solve(id.getNameAsString(), "", "");
-            if (currectClass == null)
+            if (!enterClass(id.getNameAsString()))
                 return;
             super.visit(id, data);
+            exitClass(previousClass, data);
+        }
+
+        public void visit(MethodDeclaration id, JSONObject data) {
+            visitMethod(new MethodRecord(id, sourceText));
+        }
+
+        /**
+         * Fill the json object from events recorded by a FusedCollector instead of an AST. The
+         * result is the same as visiting the AST the events were recorded from
+         * @param events the recorded events
+         * @param data   json object to record the information to
+         */
+        void replay(List<Event> events, JSONObject data) {
+            ArrayList<String> previousClasses = new ArrayList<>(); // a stack that allows nulls
+            int skipped = 0; // > 0 while inside a class whose name could not be solved
+            for (Event event: events) {
+                if (skipped > 0) {
+                    if (event.className != null)
+                        skipped++;
+                    else if (event == Event.EXIT_CLASS)
+                        skipped--;
+                } else if (event.className != null) {
+                    String previousClass = currectClass;
+                    if (enterClass(event.className))
+                        previousClasses.add(previousClass);
+                    else
+                        skipped = 1;
+                } else if (event == Event.EXIT_CLASS) {
+                    exitClass(previousClasses.remove(previousClasses.size() - 1), data);
+                } else {
+                    visitMethod(event.method);
+                }
+            }
+        }
+
+        private boolean enterClass(String name) {
+            classObject = new JSONObject();
+            currectClass = solver.solve(name, "", "");
+            return currectClass != null;
+        }
+
+        private void exitClass(String previousClass, JSONObject data) {
             if (!classObject.isEmpty())
                 ((JSONObject) data.get("classes")).put(currectClass, classObject);
             currectClass = previousClass;
         }
 
-
-        public void visit(MethodDeclaration id, JSONObject data) {
-            Parser.methodsTotal++;
+        private void visitMethod(MethodRecord method) {
+            Parser.methodsTotal.increment();
             Boolean hasDocStrings = false;
             Boolean allTypesSolved = true;
             JSONObject methodObject = new JSONObject();
 
-            if (!id.getJavadoc().isPresent())
+            if (!method.hasJavadoc)
                 return;
-            Javadoc javadoc = id.getJavadoc().get();
 
             JSONObject returnObject = new JSONObject();
-            String solvedType = solver.solve(id.getType().asString(), currectClass, id.getNameAsString());
+            String solvedType = solver.solve(method.returnType, currectClass, method.name);
             if (solvedType == null) {
+                Parser.metrics.unresolved(method.returnType);
                 allTypesSolved = false;
                 solvedType = "";
             }
             returnObject.put("type", solvedType);
-            String returnDocString = getReturnDocString(javadoc);
-            if (!returnDocString.equals("")) {
-                returnObject.put("doc", returnDocString);
+            if (!method.returnDoc.equals("")) {
+                returnObject.put("doc", method.returnDoc);
                 hasDocStrings = true;
             }
             methodObject.put("return", returnObject);
 
             JSONObject parametersObject = new JSONObject();
-            for (Parameter param: id.getParameters()) {
+            for (int i = 0; i < method.paramNames.length; i++) {
                 JSONObject paramObject = new JSONObject();
-                solvedType = solver.solve(param.getType().asString(), currectClass, id.getNameAsString());
+                solvedType = solver.solve(method.paramTypes[i], currectClass, method.name);
                 if (solvedType == null) {
+                    Parser.metrics.unresolved(method.paramTypes[i]);
                     allTypesSolved = false;
                     solvedType = "";
                 }
                 paramObject.put("type", solvedType);
-                String paramDocString = getParamDocString(javadoc, param.getNameAsString());
-                if (!paramDocString.equals("")) {
-                    paramObject.put("doc", paramDocString);
+                if (!method.paramDocs[i].equals("")) {
+                    paramObject.put("doc", method.paramDocs[i]);
                     hasDocStrings = true;
                 }
-                parametersObject.put(param.getNameAsString(), paramObject);
+                parametersObject.put(method.paramNames[i], paramObject);
             }
             methodObject.put("params", parametersObject);
 
-            String methodDocString = getMethodDocString(javadoc);
-            if (!methodDocString.equals(""))
+            if (!method.docstring.equals(""))
                 hasDocStrings = true;
-            methodObject.put("docstring", methodDocString);
+            methodObject.put("docstring", method.docstring);
 
-            if (!id.getTokenRange().isPresent())
+            if (method.source == null)
                 return;
-            methodObject.put("source", id.getTokenRange().get().toString());
+            methodObject.put("source", method.source);
 
             if (hasDocStrings)
-                Parser.methodsWithDocs++;
+                Parser.methodsWithDocs.increment();
             if (hasDocStrings && allTypesSolved) {
-                Parser.solvedMethodsWithDocs++;
-                classObject.put(id.getNameAsString(), methodObject);
+                Parser.solvedMethodsWithDocs.increment();
+                classObject.put(method.name, methodObject);
             }
         }
+    }
 
-        private String getMethodDocString(Javadoc javadoc) {
-            return javadoc.getDescription().toText();
-        }
+    /**
+     * A visitor that fills the context of a SymbolSolver and, in the same traversal, records
+     * the class and method declarations that DataCollector would visit. Types are solved only
+     * when the events are replayed, after the whole compilation unit has been seen
+     */
+    static class FusedCollector extends SymbolSolver.DataCollector {
+        final List<Event> events = new ArrayList<>();
+        private int methodDepth = 0; // DataCollector does not look inside method declarations
+        private final SourceText sourceText;
 
-        private String getParamDocString(Javadoc javadoc, String paramName) {
-            for (JavadocBlockTag block:javadoc.getBlockTags())
-                if ((block.getType() ==  JavadocBlockTag.Type.PARAM) &&
-                        (block.getName().isPresent()) &&
-                        (block.getName().get().equals(paramName)))
-                    return block.getContent().toText();
-            return "";
+        FusedCollector(SourceText sourceText) {
+            this.sourceText = sourceText;
         }
 
-        private String getReturnDocString(Javadoc javadoc) {
-            for (JavadocBlockTag block:javadoc.getBlockTags())
-                if (block.getType() ==  JavadocBlockTag.Type.RETURN)
-                    return block.getContent().toText();
-            return "";
+        @Override
+        public void visit(ClassOrInterfaceDeclaration id, SymbolSolver data) {
+            boolean record = methodDepth == 0;
+            if (record)
+                events.add(new Event(id.getNameAsString(), null));
+            super.visit(id, data);
+            if (record)
+                events.add(Event.EXIT_CLASS);
         }
 
+        @Override
+        public void visit(MethodDeclaration id, SymbolSolver data) {
+            if (methodDepth == 0)
+                events.add(new Event(null, new MethodRecord(id, sourceText)));
+            methodDepth++;
+            super.visit(id, data);
+            methodDepth--;
+        }
     }
 }
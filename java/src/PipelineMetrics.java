@@ -0,0 +1,359 @@
+import org.json.simple.JSONObject;
+
+import javax.management.ObjectName;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Counters, stage timers and histograms of a processing pipeline (ClassIndex or Parser). All of
+ * them can be updated from worker threads without locking, and nothing is printed while files
+ * are processed: the numbers can be watched through JMX while a job runs and are written to a
+ * json summary file at the end of it.
+ *
+ * A stage is timed by passing the time at which it started, which returns the time at which it
+ * ended, so consecutive stages are timed with one System.nanoTime() call each:
+ *   long time = System.nanoTime();
+ *   ... decode ...
+ *   time = metrics.time(Stage.DECODE, time);
+ *   ... parse ...
+ *   time = metrics.time(Stage.PARSE, time);
+ */
+public class PipelineMetrics implements PipelineMetricsMXBean {
+    private static final int MAX_UNRESOLVED_TYPES = 10000; // distinct types that are counted
+    private static final int TOP_UNRESOLVED_TYPES = 100; // types in the summary
+    private static final String OTHER_TYPES = "(other)";
+
+    enum Stage {
+        READ, DECODE, PARSE, SOLVE, SERIALIZE; // SOLVE includes collecting the declarations
+
+        String key() {
+            return name().toLowerCase();
+        }
+    }
+
+    private final String name;
+    private final long startNanos = System.nanoTime();
+    private final LongAdder[] stageNanos = new LongAdder[Stage.values().length];
+    private final LongAdder[] stageCalls = new LongAdder[Stage.values().length];
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> failures = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> unresolvedTypes = new ConcurrentHashMap<>();
+    private final LatencyHistogram fileLatency = new LatencyHistogram();
+
+    PipelineMetrics(String name) {
+        this.name = name;
+        for (int i = 0; i < stageNanos.length; i++) {
+            stageNanos[i] = new LongAdder();
+            stageCalls[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Create metrics and make them available through JMX
+     * @param name the name of the pipeline
+     * @return
+     */
+    public static PipelineMetrics register(String name) {
+        PipelineMetrics metrics = new PipelineMetrics(name);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+                    new ObjectName("typePrediction:type=PipelineMetrics,name=" + name));
+        } catch (Exception e) {
+            e.printStackTrace(); // the metrics still work, they are just not visible in JMX
+        }
+        return metrics;
+    }
+
+    /**
+     * @param name the name of a counter
+     * @return the counter, created the first time it is asked for
+     */
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    /**
+     * Add the time since a stage started to the time of that stage
+     * @param stage the stage
+     * @param since the System.nanoTime() at which the stage started
+     * @return the current System.nanoTime(), at which the next stage starts
+     */
+    public long time(Stage stage, long since) {
+        long now = System.nanoTime();
+        stageNanos[stage.ordinal()].add(now - since);
+        stageCalls[stage.ordinal()].increment();
+        return now;
+    }
+
+    /**
+     * Count a processed file and record how long processing it took
+     * @param since the System.nanoTime() at which processing the file started
+     */
+    public void fileDone(long since) {
+        counter("files").increment();
+        fileLatency.record(System.nanoTime() - since);
+    }
+
+    /**
+     * Count a file that could not be processed
+     * @param reason a short description, like "parse error"
+     */
+    public void failure(String reason) {
+        failures.computeIfAbsent(reason, key -> new LongAdder()).increment();
+    }
+
+    /**
+     * Count a type that could not be solved. Only the first MAX_UNRESOLVED_TYPES distinct types
+     * get counters of their own, so that the memory used does not grow with the input
+     * @param type the type as it is written in the source code
+     */
+    public void unresolved(String type) {
+        LongAdder count = unresolvedTypes.get(type);
+        if (count == null)
+            count = unresolvedTypes.size() < MAX_UNRESOLVED_TYPES ?
+                    unresolvedTypes.computeIfAbsent(type, key -> new LongAdder()) :
+                    unresolvedTypes.computeIfAbsent(OTHER_TYPES, key -> new LongAdder());
+        count.increment();
+    }
+
+    /**
+     * Time reading the elements of a stream (e.g. the lines of a file) as the READ stage
+     * @param lines the stream to read
+     * @return a stream with the same elements, which closes the original one when it is closed
+     */
+    public <L> Stream<L> timeReads(Stream<L> lines) {
+        Iterator<L> iterator = lines.iterator();
+        Iterator<L> timed = new Iterator<L>() {
+            @Override
+            public boolean hasNext() {
+                long start = System.nanoTime();
+                boolean hasNext = iterator.hasNext(); // this is where the line is read
+                time(Stage.READ, start);
+                return hasNext;
+            }
+
+            @Override
+            public L next() {
+                return iterator.next();
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(timed,
+                Spliterator.ORDERED), false).onClose(lines::close);
+    }
+
+    @Override
+    public double getElapsedSeconds() {
+        return (System.nanoTime() - startNanos) / 1e9;
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        return sums(counters);
+    }
+
+    @Override
+    public Map<String, Double> getRatesPerSecond() {
+        double seconds = getElapsedSeconds();
+        TreeMap<String, Double> result = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> counter: counters.entrySet())
+            result.put(counter.getKey(), counter.getValue().sum() / seconds);
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getStageMillis() {
+        TreeMap<String, Long> result = new TreeMap<>();
+        for (Stage stage: Stage.values())
+            result.put(stage.key(),
+                    TimeUnit.NANOSECONDS.toMillis(stageNanos[stage.ordinal()].sum()));
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getFailureReasons() {
+        return sums(failures);
+    }
+
+    @Override
+    public Map<String, Long> getTopUnresolvedTypes() {
+        TreeMap<String, Long> result = new TreeMap<>();
+        unresolvedTypes.entrySet().stream()
+                .sorted((a, b) -> Long.compare(b.getValue().sum(), a.getValue().sum()))
+                .limit(TOP_UNRESOLVED_TYPES)
+                .forEach(type -> result.put(type.getKey(), type.getValue().sum()));
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getFileLatencyMillis() {
+        TreeMap<String, Double> result = new TreeMap<>();
+        result.put("p50", fileLatency.percentile(0.5) / 1e6);
+        result.put("p90", fileLatency.percentile(0.9) / 1e6);
+        result.put("p99", fileLatency.percentile(0.99) / 1e6);
+        result.put("p999", fileLatency.percentile(0.999) / 1e6);
+        result.put("max", fileLatency.max.get() / 1e6);
+        return result;
+    }
+
+    private static TreeMap<String, Long> sums(Map<String, LongAdder> counters) {
+        TreeMap<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> counter: counters.entrySet())
+            result.put(counter.getKey(), counter.getValue().sum());
+        return result;
+    }
+
+    /**
+     * @return everything the metrics know as a json object
+     */
+    public JSONObject summary() {
+        JSONObject summary = new JSONObject();
+        summary.put("name", name);
+        summary.put("elapsedSeconds", getElapsedSeconds());
+        summary.put("counters", new JSONObject(getCounters()));
+        summary.put("ratesPerSecond", new JSONObject(getRatesPerSecond()));
+        JSONObject stages = new JSONObject();
+        for (Stage stage: Stage.values()) {
+            JSONObject stageObject = new JSONObject();
+            stageObject.put("calls", stageCalls[stage.ordinal()].sum());
+            stageObject.put("millis",
+                    TimeUnit.NANOSECONDS.toMillis(stageNanos[stage.ordinal()].sum()));
+            stages.put(stage.key(), stageObject);
+        }
+        summary.put("stages", stages);
+        summary.put("failureReasons", new JSONObject(getFailureReasons()));
+        summary.put("topUnresolvedTypes", new JSONObject(getTopUnresolvedTypes()));
+        summary.put("fileLatencyMillis", new JSONObject(getFileLatencyMillis()));
+        summary.put("fileLatencyBuckets", fileLatency.buckets());
+        return summary;
+    }
+
+    /**
+     * Add the numbers of another process, e.g. a worker of a Coordinator, to these
+     * @param summary the summary of the metrics of the other process. Only its top unresolved
+     *                types are in it, so only those are added
+     */
+    @SuppressWarnings("unchecked")
+    public void add(JSONObject summary) {
+        add(counters, (Map<String, Long>) summary.get("counters"));
+        add(failures, (Map<String, Long>) summary.get("failureReasons"));
+        add(unresolvedTypes, (Map<String, Long>) summary.get("topUnresolvedTypes"));
+        JSONObject stages = (JSONObject) summary.get("stages");
+        for (Stage stage: Stage.values()) {
+            JSONObject stageObject = (JSONObject) stages.get(stage.key());
+            stageCalls[stage.ordinal()].add((Long) stageObject.get("calls"));
+            stageNanos[stage.ordinal()].add(
+                    TimeUnit.MILLISECONDS.toNanos((Long) stageObject.get("millis")));
+        }
+        fileLatency.add((Map<String, Long>) summary.get("fileLatencyBuckets"));
+        double maxMillis = (Double) ((JSONObject) summary.get("fileLatencyMillis")).get("max");
+        fileLatency.max.accumulateAndGet((long) (maxMillis * 1e6), Math::max);
+    }
+
+    private static void add(ConcurrentHashMap<String, LongAdder> counters,
+                            Map<String, Long> values) {
+        for (Map.Entry<String, Long> value: values.entrySet())
+            counters.computeIfAbsent(value.getKey(), key -> new LongAdder())
+                    .add(value.getValue());
+    }
+
+    /**
+     * Write the summary to a file
+     * @param fileName
+     */
+    public void writeSummary(String fileName) {
+        try (Writer writer = new FileWriter(fileName)) {
+            writer.write(summary().toString());
+            writer.write('\n');
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * A histogram of durations with SUB_BUCKETS buckets for every power of two, so a percentile
+     * is off by less than 1 / SUB_BUCKETS
+     */
+    static class LatencyHistogram {
+        private static final int SUB_BUCKETS = 8;
+        private static final int SUB_BITS = 3; // log2(SUB_BUCKETS)
+        private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+        final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            nanos = Math.max(nanos, 0);
+            counts.incrementAndGet(bucket(nanos));
+            max.accumulateAndGet(nanos, Math::max);
+        }
+
+        private static int bucket(long value) {
+            if (value < SUB_BUCKETS)
+                return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value); // >= SUB_BITS
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        /**
+         * @return the largest value that falls into a bucket
+         */
+        private static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS)
+                return bucket;
+            int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+            long sub = bucket % SUB_BUCKETS;
+            return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+        }
+
+        /**
+         * @return the counts of the buckets that are not empty, by bucket
+         */
+        JSONObject buckets() {
+            JSONObject buckets = new JSONObject();
+            for (int i = 0; i < counts.length(); i++)
+                if (counts.get(i) > 0)
+                    buckets.put(String.valueOf(i), counts.get(i));
+            return buckets;
+        }
+
+        /**
+         * Add the counts of the buckets of another histogram
+         * @param buckets see buckets()
+         */
+        void add(Map<String, Long> buckets) {
+            for (Map.Entry<String, Long> bucket: buckets.entrySet())
+                counts.addAndGet(Integer.parseInt(bucket.getKey()), bucket.getValue());
+        }
+
+        /**
+         * @param fraction e.g. 0.99 for the 99th percentile
+         * @return an upper bound of the percentile in nanoseconds, 0 if nothing was recorded
+         */
+        long percentile(double fraction) {
+            long total = 0;
+            for (int i = 0; i < counts.length(); i++)
+                total += counts.get(i);
+            long rank = (long) Math.ceil(fraction * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank && seen > 0)
+                    return Math.min(upperBound(i), max.get());
+            }
+            return 0;
+        }
+    }
+}
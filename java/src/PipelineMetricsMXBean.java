@@ -0,0 +1,42 @@
+import java.util.Map;
+
+/**
+ * What PipelineMetrics exposes through JMX (under typePrediction:type=PipelineMetrics)
+ */
+public interface PipelineMetricsMXBean {
+    /**
+     * @return the seconds since the metrics were created
+     */
+    double getElapsedSeconds();
+
+    /**
+     * @return the number of processed files, methods, etc.
+     */
+    Map<String, Long> getCounters();
+
+    /**
+     * @return every counter divided by the elapsed seconds
+     */
+    Map<String, Double> getRatesPerSecond();
+
+    /**
+     * @return the total time spent in every stage (read, decode, parse, solve, serialize), summed
+     * over all threads
+     */
+    Map<String, Long> getStageMillis();
+
+    /**
+     * @return the number of files that failed for every reason
+     */
+    Map<String, Long> getFailureReasons();
+
+    /**
+     * @return the types that could not be solved most often, with their counts
+     */
+    Map<String, Long> getTopUnresolvedTypes();
+
+    /**
+     * @return percentiles of the time it took to process a file
+     */
+    Map<String, Double> getFileLatencyMillis();
+}
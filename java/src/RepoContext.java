@@ -0,0 +1,61 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * What SymbolSolver looks up in the global class index for one repository, kept while the files
+ * of that repository are solved one after the other (see Parser.groupByRepo): the answers to its
+ * wildcard imports (the packages the repository defines classes in) and the packages in which it
+ * defines the classes its files refer to. The context is filled as the files ask, so its size
+ * depends on what the files use rather than on the size of the repository, and it is dropped
+ * when the files of the repository are done. The worker threads that solve files of the
+ * repository at the same time share the context
+ */
+public class RepoContext {
+    private static final List<String> NOT_INDEXED = new ArrayList<>(0); // compared by reference
+    private final TypeIndex index;
+    final String repo;
+    private final ConcurrentHashMap<String, Boolean> packages = new ConcurrentHashMap<>();
+    // class -> findPackages, or NOT_INDEXED for classes that are not in the index at all
+    private final ConcurrentHashMap<String, List<String>> classes = new ConcurrentHashMap<>();
+
+    /**
+     * @param repo the repository whose files are solved with the global class index
+     */
+    public RepoContext(String repo) {
+        this(SymbolSolver.globalClassIndex, repo);
+    }
+
+    RepoContext(TypeIndex index, String repo) {
+        this.index = index;
+        this.repo = repo;
+    }
+
+    /**
+     * @param pack a package name
+     * @return the same as index.hasPackage(repo, pack)
+     */
+    boolean hasPackage(String pack) {
+        Boolean known = packages.get(pack);
+        if (known == null) { // another thread may look it up too, with the same answer
+            known = index.hasPackage(repo, pack);
+            packages.put(pack, known);
+        }
+        return known;
+    }
+
+    /**
+     * @param clazz a simple class name
+     * @return null if no repository defines a class with this name (see index.containsClass),
+     * otherwise the packages in which this one does, in the order of the index (see
+     * index.findPackages)
+     */
+    List<String> packagesOf(String clazz) {
+        List<String> packs = classes.get(clazz);
+        if (packs == null) {
+            packs = index.containsClass(clazz) ? index.findPackages(clazz, repo) : NOT_INDEXED;
+            classes.put(clazz, packs);
+        }
+        return packs == NOT_INDEXED ? null : packs;
+    }
+}
@@ -0,0 +1,236 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Groups the lines of a dump file by repository (see Parser.groupByRepo), so that the files of a
+ * repository are solved one after the other with the same RepoContext. The lines are sorted by
+ * repo_name with an external merge sort: up to -DgroupRunMB (256 by default) MB of lines are
+ * sorted in memory at a time, and if the file has more, the sorted runs are written to a
+ * temporary directory and merged. The sort is stable, so the lines of a repository stay in the
+ * order of the file.
+ *
+ * A run is the number of lines and the lines, each of which is its repository ("" if the line
+ * has no readable repo_name), its length and its bytes.
+ */
+public class RepoLines {
+    private static final int BUFFER_SIZE = 1 << 16;
+    static long runBytes = Long.getLong("groupRunMB", 256) << 20;
+
+    private static final Comparator<String> BY_REPO =
+            Comparator.nullsFirst(Comparator.naturalOrder());
+
+    /**
+     * A line of a dump file with its repository
+     */
+    static class Line {
+        final String repo; // null if the line has no readable repo_name
+        final byte[] bytes;
+        RepoContext context; // shared by the lines of the repository, null if repo is
+
+        Line(String repo, byte[] bytes) {
+            this.repo = repo;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Sort lines by repository. All lines are read before this returns, and the stream has to be
+     * closed to delete the runs
+     * @param lines   the lines of a dump file (see BigQueryLines)
+     * @param keep    whether to keep the lines of a repository, so that lines that would be
+     *                skipped anyway are not sorted (lines without a readable repo_name are kept)
+     * @param tempDir the directory in which to create the directory of the runs, if there are any
+     * @return the lines that are kept, by repository, each with the context of its repository
+     * @throws IOException
+     */
+    public static Stream<Line> group(Stream<byte[]> lines, Predicate<String> keep, Path tempDir)
+            throws IOException {
+        List<Line> run = new ArrayList<>();
+        long size = 0;
+        Path runDir = null;
+        List<File> runFiles = new ArrayList<>();
+        try {
+            for (Iterator<byte[]> iterator = lines.iterator(); iterator.hasNext(); ) {
+                byte[] bytes = iterator.next();
+                String repo = BigQueryLines.stringField(bytes, "repo_name");
+                if (repo != null && !keep.test(repo))
+                    continue;
+                run.add(new Line(repo, bytes));
+                size += bytes.length + 64;
+                if (size >= runBytes) {
+                    if (runDir == null)
+                        runDir = Files.createTempDirectory(tempDir, "group");
+                    writeRun(run, runDir, runFiles);
+                    size = 0;
+                }
+            }
+            Iterator<Line> sorted;
+            if (runFiles.isEmpty()) { // everything fits in memory
+                run.sort(Comparator.comparing((Line line) -> line.repo, BY_REPO));
+                sorted = run.iterator();
+            } else {
+                if (!run.isEmpty())
+                    writeRun(run, runDir, runFiles);
+                sorted = new MergedRuns(runFiles);
+            }
+            Path dir = runDir;
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+                    new WithContexts(sorted), Spliterator.ORDERED), false).onClose(() -> {
+                        if (sorted instanceof MergedRuns)
+                            ((MergedRuns) sorted).close();
+                        delete(runFiles, dir);
+                    });
+        } catch (IOException | UncheckedIOException | Error e) {
+            delete(runFiles, runDir);
+            throw e;
+        }
+    }
+
+    /**
+     * Sort a run, write it to a new file in a directory and clear it
+     */
+    private static void writeRun(List<Line> run, Path runDir, List<File> runFiles)
+            throws IOException {
+        run.sort(Comparator.comparing((Line line) -> line.repo, BY_REPO));
+        File runFile = runDir.resolve("run" + runFiles.size()).toFile();
+        runFiles.add(runFile);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(runFile), BUFFER_SIZE))) {
+            out.writeInt(run.size());
+            for (Line line: run) {
+                out.writeUTF(line.repo == null ? "" : line.repo);
+                out.writeInt(line.bytes.length);
+                out.write(line.bytes);
+            }
+        }
+        run.clear();
+    }
+
+    private static void delete(List<File> runFiles, Path runDir) {
+        for (File runFile: runFiles)
+            runFile.delete();
+        if (runDir != null)
+            runDir.toFile().delete();
+    }
+
+    /**
+     * Gives every line the context of its repository, a new one whenever the repository changes
+     */
+    private static class WithContexts implements Iterator<Line> {
+        private final Iterator<Line> lines;
+        private RepoContext context = null;
+
+        WithContexts(Iterator<Line> lines) {
+            this.lines = lines;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return lines.hasNext();
+        }
+
+        @Override
+        public Line next() {
+            Line line = lines.next();
+            if (line.repo != null && (context == null || !context.repo.equals(line.repo)))
+                context = new RepoContext(line.repo);
+            line.context = line.repo == null ? null : context;
+            return line;
+        }
+    }
+
+    /**
+     * The lines of sorted runs, merged by repository and, for the same repository, by run
+     */
+    private static class MergedRuns implements Iterator<Line>, Closeable {
+        private final PriorityQueue<RunReader> queue;
+        private final List<RunReader> readers = new ArrayList<>();
+
+        MergedRuns(List<File> runFiles) throws IOException {
+            queue = new PriorityQueue<>(runFiles.size(), (reader1, reader2) -> {
+                int order = BY_REPO.compare(reader1.current.repo, reader2.current.repo);
+                return order != 0 ? order : Integer.compare(reader1.run, reader2.run);
+            });
+            try {
+                for (int i = 0; i < runFiles.size(); i++) {
+                    RunReader reader = new RunReader(runFiles.get(i), i);
+                    readers.add(reader);
+                    if (reader.next())
+                        queue.add(reader);
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public Line next() {
+            RunReader reader = queue.poll();
+            if (reader == null)
+                throw new NoSuchElementException();
+            Line line = reader.current;
+            try {
+                if (reader.next())
+                    queue.add(reader);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return line;
+        }
+
+        @Override
+        public void close() {
+            for (RunReader reader: readers)
+                try {
+                    reader.in.close();
+                } catch (IOException e) {
+                    // only read from
+                }
+        }
+    }
+
+    /**
+     * Reads the lines of a run one by one
+     */
+    private static class RunReader {
+        private final DataInputStream in;
+        private final int run; // the number of the run, which breaks ties between runs
+        private int remaining;
+        Line current;
+
+        RunReader(File runFile, int run) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(runFile),
+                    BUFFER_SIZE));
+            this.run = run;
+            remaining = in.readInt();
+        }
+
+        /**
+         * Read the next line into current
+         * @return false at the end of the run
+         */
+        boolean next() throws IOException {
+            if (remaining == 0) {
+                current = null;
+                return false;
+            }
+            remaining--;
+            String repo = in.readUTF();
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            current = new Line(repo.isEmpty() ? null : repo, bytes);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+import java.io.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The number of classes defined in every repository of a class index and the set of valid
+ * repositories (see ClassIndex.getValidRepos). Both take full passes over the index to compute,
+ * so they are computed once when the index is built and saved in a small file next to it
+ * (classIndex.json -> classIndex.repos).
+ *
+ * The file starts with a magic number and the number of repositories, followed by the
+ * repositories sorted by name. Every repository is stored as the length of the prefix it shares
+ * with the previous name, the rest of the name, the number of classes and the valid flag. Names
+ * look like owner/project, so the shared prefixes make the file much smaller.
+ */
+public class RepoStats {
+    private static final int MAGIC = 0x52455053; // "REPS"
+
+    private final HashMap<String, Integer> repoSizes;
+    private final HashSet<String> validRepos;
+
+    /**
+     * Compute the statistics of an index, write them next to it and check that reading them back
+     * gives the same answer as the algorithms in ClassIndex
+     */
+    public static void main(String[] args) {
+        String jsonFile = args.length > 0 ? args[0] : "../data/classIndex.json";
+        ClassIndex classIndex = new ClassIndex();
+        System.out.println("Read " + jsonFile + "...");
+        classIndex.readJson(jsonFile);
+        RepoStats stats = new RepoStats(classIndex);
+        try {
+            stats.write(fileFor(jsonFile));
+            RepoStats saved = read(fileFor(jsonFile));
+            boolean sizesEqual = saved.repoSizes.equals(classIndex.getRepoSizes());
+            boolean validEqual = saved.validRepos.equals(classIndex.getValidRepos());
+            System.out.println(saved.validRepos.size() + " valid of " + saved.repoSizes.size() +
+                    " repositories, sizes " + (sizesEqual ? "match" : "DIFFER") +
+                    ", valid repositories " + (validEqual ? "match" : "DIFFER"));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public RepoStats(ClassIndex classIndex) {
+        repoSizes = classIndex.getRepoSizes();
+        validRepos = classIndex.getValidRepos();
+    }
+
+    RepoStats(HashMap<String, Integer> repoSizes, HashSet<String> validRepos) {
+        this.repoSizes = repoSizes;
+        this.validRepos = validRepos;
+    }
+
+    /**
+     * @param indexFile the json file of a class index
+     * @return the file in which the statistics of that index are kept
+     */
+    public static String fileFor(String indexFile) {
+        if (indexFile.endsWith(".json"))
+            indexFile = indexFile.substring(0, indexFile.length() - ".json".length());
+        return indexFile + ".repos";
+    }
+
+    /**
+     * Read the statistics saved next to an index, unless there are none or the index has been
+     * changed since they were written
+     * @param indexFile the json file of a class index
+     * @return the statistics or null
+     */
+    public static RepoStats load(String indexFile) {
+        File statsFile = new File(fileFor(indexFile));
+        if (!statsFile.exists() || statsFile.lastModified() < new File(indexFile).lastModified())
+            return null;
+        try {
+            return read(statsFile.getPath());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public Set<String> getValidRepos() {
+        return validRepos;
+    }
+
+    public HashMap<String, Integer> getRepoSizes() {
+        return repoSizes;
+    }
+
+    public void write(String fileName) throws IOException {
+        String[] repos = repoSizes.keySet().toArray(new String[0]);
+        Arrays.sort(repos);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(fileName), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(repos.length);
+            String previous = "";
+            for (String repo: repos) {
+                int shared = 0;
+                int limit = Math.min(Math.min(previous.length(), repo.length()), 0xFFFF);
+                while (shared < limit && previous.charAt(shared) == repo.charAt(shared))
+                    shared++;
+                out.writeShort(shared);
+                out.writeUTF(repo.substring(shared));
+                out.writeInt(repoSizes.get(repo));
+                out.writeBoolean(validRepos.contains(repo));
+                previous = repo;
+            }
+        }
+    }
+
+    public static RepoStats read(String fileName) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(fileName), 1 << 16))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a repository statistics file: " + fileName);
+            int count = in.readInt();
+            HashMap<String, Integer> repoSizes = new HashMap<>(count * 4 / 3 + 1);
+            HashSet<String> validRepos = new HashSet<>();
+            String previous = "";
+            for (int i = 0; i < count; i++) {
+                String repo = previous.substring(0, in.readUnsignedShort()) + in.readUTF();
+                repoSizes.put(repo, in.readInt());
+                if (in.readBoolean())
+                    validRepos.add(repo);
+                previous = repo;
+            }
+            return new RepoStats(repoSizes, validRepos);
+        }
+    }
+}
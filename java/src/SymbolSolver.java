@@ -5,28 +5,26 @@ import com.github.javaparser.ast.body.ClassOrInterfaceDeclaration;
 import com.github.javaparser.ast.body.MethodDeclaration;
 import com.github.javaparser.ast.type.TypeParameter;
 import com.github.javaparser.ast.visitor.VoidVisitorAdapter;
-import org.json.simple.parser.JSONParser;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.List;
 
 /**
  * A class that allows to colve most type identifiers based on imports and program structure
  */
 public class SymbolSolver {
     private static final String TYPE_PARAM = "__T__";
+    private static final String UNSOLVED = new String("__UNSOLVED__"); // compared by reference
     private static final HashSet<String> javaLang; // list of classes in java.lang package
-    private static final HashMap<String, HashSet<String>> repoToPackage; // for each repository,
-    // this gives a list of packages defined in that repository
-    public static final ClassIndex globalClassIndex; // global classIndex constructed for all repos
+    public static final TypeIndex globalClassIndex; // global classIndex constructed for all repos
 
     static { // initializing the static constants
-        globalClassIndex = new ClassIndex();
-        globalClassIndex.fromJson(ClassIndex.parseJSON(new JSONParser(), "../data/classIndex.json", true));
-        repoToPackage = globalClassIndex.getRepoToPackage();
+        globalClassIndex = loadClassIndex("../data/classIndex.bin", "../data/classIndex.json");
         javaLang = new HashSet<>(Arrays.asList("Appendable", "AutoCloseable",
                 "CharSequence", "Cloneable", "Comparable", "Iterable", "Readable", "Runnable",
                 "Boolean", "Byte", "Character", "Class", "ClassLoader", "ClassValue", "Compiler",
@@ -54,75 +52,257 @@ public class SymbolSolver {
                 "Override", "SafeVarargs", "SuppressWarnings"));
     }
 
+    /**
+     * Load the global class index, preferring the memory-mapped binary version if it exists
+     * (see BinaryClassIndex.main for how to create it from the json version) and is not older
+     * than the json version. The json version is dictionary-encoded after loading, so that the
+     * maps can be garbage collected
+     * @param binaryFile the binary version of the index
+     * @param jsonFile   the json version of the index
+     * @return
+     */
+    private static TypeIndex loadClassIndex(String binaryFile, String jsonFile) {
+        File binary = new File(binaryFile);
+        if (binary.exists() && binary.lastModified() >= new File(jsonFile).lastModified()) {
+            try {
+                return BinaryClassIndex.open(binaryFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        ClassIndex classIndex = new ClassIndex();
+        classIndex.readJson(jsonFile);
+        return new EncodedClassIndex(classIndex);
+    }
+
     private final String repo;  // the repository in which the solver is used
+    // the lookups already made for the repository, null to look everything up in the index
+    private final RepoContext context;
     private HashSet<String> knownWildcardImports; // list of wildcard imports from globalClassIndex
     private HashMap<String, String> localClassIndex; // classes imported explicitly
     private String unknownWildcardPackageImport; // iff there is a single unknown pack* import
     private HashMap<String, HashSet<String>> classTypeParameters; // class-level type parameters
-    private HashMap<String, HashSet<String>> methodTypeParameters; // method-level type parameters
+    private HashMap<String, HashMap<String, HashSet<String>>> methodTypeParameters;
+    // class -> method -> method-level type parameters
+    HashMap<String, String> memo; // class name -> solveClassName(class name) or UNSOLVED,
+    // null turns memoization off (see SolveBenchmark)
+    // the package and the wildcard imports in the order they were added, which is all of the
+    // context that depends on the repository (see forRepo)
+    private final ArrayList<String> packageImports = new ArrayList<>();
+    private int packageDeclaration = -1; // the index of the package in packageImports, if any
 
     public SymbolSolver(String repo, CompilationUnit ast) {
+        this(repo, null, ast);
+    }
+
+    /**
+     * Same as SymbolSolver(repo, ast), but the global class index is queried through the
+     * context of the repository, which keeps the answers for its next files
+     * @param repo
+     * @param context the context of the repository, or null
+     * @param ast
+     */
+    public SymbolSolver(String repo, RepoContext context, CompilationUnit ast) {
+        this(repo, context);
+        DataCollector visitor = new DataCollector();
+        visitor.visit(ast, this);
+        finish();
+    }
+
+    /**
+     * Create a solver whose context is to be filled by visiting the compilation unit with a
+     * DataCollector (or a subclass of it) and then calling finish()
+     * @param repo the repository in which the solver is used
+     */
+    SymbolSolver(String repo) {
+        this(repo, (RepoContext) null);
+    }
+
+    /**
+     * Same as SymbolSolver(repo), but the global class index is queried through the context of
+     * the repository
+     * @param repo
+     * @param context the context of the repository, or null
+     */
+    SymbolSolver(String repo, RepoContext context) {
         this.repo = repo;
+        this.context = context;
         this.unknownWildcardPackageImport = null;
         this.knownWildcardImports = new HashSet<>();
         this.localClassIndex = new HashMap<>();
         this.classTypeParameters = new HashMap<>();
         this.methodTypeParameters = new HashMap<>();
+        this.memo = new HashMap<>();
+    }
 
-        DataCollector visitor = new DataCollector();
-        visitor.visit(ast, this);
+    /**
+     * A solver with the same context for the same compilation unit in another repository. Only
+     * the wildcard imports are looked up again, the rest of the context is shared, so neither
+     * solver may be filled any further
+     * @param repo the repository in which the new solver is used
+     * @return
+     */
+    SymbolSolver forRepo(String repo) {
+        return forRepo(repo, null);
+    }
 
+    /**
+     * Same as forRepo(repo), but the new solver queries the global class index through the
+     * context of the repository
+     * @param repo
+     * @param context the context of the repository, or null
+     * @return
+     */
+    SymbolSolver forRepo(String repo, RepoContext context) {
+        SymbolSolver solver = new SymbolSolver(repo, context);
+        solver.localClassIndex = localClassIndex;
+        solver.classTypeParameters = classTypeParameters;
+        solver.methodTypeParameters = methodTypeParameters;
+        for (int i = 0; i < packageImports.size(); i++) {
+            if (i == packageDeclaration)
+                solver.addPackage(packageImports.get(i));
+            else
+                solver.addWildcardImport(packageImports.get(i));
+        }
+        solver.finish();
+        return solver;
+    }
+
+    /**
+     * @return a rough estimate of the memory used by the context of the solver in bytes
+     */
+    long contextWeight() {
+        long entries = localClassIndex.size() + classTypeParameters.size() +
+                packageImports.size();
+        for (HashMap<String, HashSet<String>> methods: methodTypeParameters.values())
+            entries += methods.size();
+        return 128 * entries;
+    }
+
+    private void addPackage(String name) {
+        packageDeclaration = packageImports.size();
+        packageImports.add(name);
+        knownWildcardImports.add(name);
+    }
+
+    private void addWildcardImport(String name) {
+        packageImports.add(name);
+        if (context != null ? context.hasPackage(name) : globalClassIndex.hasPackage(repo, name))
+            knownWildcardImports.add(name);
+        else {
+            if (unknownWildcardPackageImport == null)
+                unknownWildcardPackageImport = name;
+            else
+                unknownWildcardPackageImport = "";
+        }
+    }
+
+    /**
+     * Complete the context of the solver once the whole compilation unit has been visited
+     */
+    void finish() {
         if ((this.unknownWildcardPackageImport != null) &&
                 (this.unknownWildcardPackageImport.equals("")))
             this.unknownWildcardPackageImport = null;
     }
 
+    /**
+     * Replace every class name in a (possibly generic or array) type with its fully qualified
+     * name. The type is scanned by hand rather than with a regular expression: a class name is a
+     * maximal run of letters, digits and dots, and everything else is copied as is
+     * @param type       the type as written in the source
+     * @param className  the fully qualified name of the class in which the type is used
+     * @param methodName the name of the method in which the type is used
+     * @return the solved type, or null if some class name in it cannot be solved
+     */
     public String solve(String type, String className, String methodName) {
-        // System.out.println(type);
-        Pattern pattern = Pattern.compile("[A-Za-z0-9\\.]*");
-        Matcher m = pattern.matcher(type);
-        StringBuffer sb = new StringBuffer();
-        while (m.find()) {
-            String group = m.group();
-            if (!group.equals("")) {
-                String replacement = solveSingleType(group, className, methodName);
-                // System.out.println(group + " " + replacement);
-                if (replacement == null)
-                    return null;
-                else {
-                    try {
-                        m.appendReplacement(sb, replacement);
-                    } catch (IllegalArgumentException e) {
-                        // happens then a class name contains a $ sign
-                        return null;
-                    }
-                }
+        HashMap<String, HashSet<String>> classMethods = methodTypeParameters.get(className);
+        HashSet<String> methodParams = classMethods == null ? null : classMethods.get(methodName);
+        HashSet<String> classParams = classTypeParameters.get(className);
+
+        StringBuilder result = null; // only allocated once some name actually changes
+        int copied = 0; // type.substring(0, copied) has been appended to result
+        int length = type.length();
+        int start = 0;
+        while (start < length) {
+            if (!isNameChar(type.charAt(start))) {
+                start++;
+                continue;
+            }
+            int end = start + 1;
+            while (end < length && isNameChar(type.charAt(end)))
+                end++;
+            String name = (start == 0 && end == length) ? type : type.substring(start, end);
+            String replacement = solveSingleType(name, classParams, methodParams);
+            if (replacement == null)
+                return null;
+            if (!replacement.equals(name)) {
+                if (replacement.indexOf('$') >= 0)
+                    return null; // class names with a $ sign are not supported
+                if (result == null)
+                    result = new StringBuilder(length + replacement.length());
+                result.append(type, copied, start).append(replacement);
+                copied = end;
             }
+            start = end;
         }
-        m.appendTail(sb);
-        // System.out.println(type+ " " + sb);
-        return String.valueOf(sb);
+        if (result == null)
+            return type;
+        return result.append(type, copied, length).toString();
     }
 
+    private static boolean isNameChar(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') ||
+                c == '.';
+    }
 
     public String solveSingleType(String type, String className, String methodName) {
+        HashMap<String, HashSet<String>> classMethods = methodTypeParameters.get(className);
+        return solveSingleType(type, classTypeParameters.get(className),
+                classMethods == null ? null : classMethods.get(methodName));
+    }
+
+    /**
+     * Solve a single class name given the type parameters that are in scope
+     * @param type         the class name
+     * @param classParams  type parameters of the class in which it is used (or null)
+     * @param methodParams type parameters of the method in which it is used (or null)
+     * @return the fully qualified name, TYPE_PARAM or null if the name cannot be solved
+     */
+    private String solveSingleType(String type, HashSet<String> classParams,
+                                   HashSet<String> methodParams) {
         if (Character.isLowerCase(type.charAt(0)))
             return type; // either already a fully qualified name or a primitive class
-        if ((methodTypeParameters.getOrDefault(className + "." + methodName, new HashSet<>()).contains(type)) ||
-                (classTypeParameters.getOrDefault(className, new HashSet<>()).contains(type)))
+        if ((methodParams != null && methodParams.contains(type)) ||
+                (classParams != null && classParams.contains(type)))
             return TYPE_PARAM;
+        // the rest does not depend on the scope, so it is memoized per solver
+        if (memo == null)
+            return solveClassName(type);
+        String solved = memo.get(type);
+        if (solved == null) {
+            solved = solveClassName(type);
+            memo.put(type, solved == null ? UNSOLVED : solved);
+        }
+        return solved == UNSOLVED ? null : solved;
+    }
 
+    private String solveClassName(String type) {
         if (!type.contains(".")) { // public class or interface
             if (localClassIndex.containsKey(type)) // directly imported
                 return localClassIndex.get(type) + "." + type;
             if (javaLang.contains(type)) // a java.lang class
                 return "java.lang." + type;
             // from a known wildcard import from within the repository
-            if (globalClassIndex.classToPackToRepo.containsKey(type)) {
-                for (String pack:globalClassIndex.classToPackToRepo.get(type).keySet())
-                    if (knownWildcardImports.contains(pack) && globalClassIndex.classToPackToRepo.
-                            get(type).get(pack).contains(repo))
+            List<String> packs = context != null ? context.packagesOf(type) : null;
+            if (packs != null) { // the class is in the index
+                for (String pack: packs)
+                    if (knownWildcardImports.contains(pack))
                         return pack + "." + type;
+            } else if (context == null && globalClassIndex.containsClass(type)) {
+                String pack = globalClassIndex.findPackage(type, knownWildcardImports, repo);
+                if (pack != null)
+                    return pack + "." + type;
             } else if (unknownWildcardPackageImport != null) // from the unknown wildcard import
                 return unknownWildcardPackageImport + "." + type;
             return null;
@@ -139,9 +319,10 @@ public class SymbolSolver {
 
 
     /**
-     * A visitor class that fills the classToPackToRepo dictionary
+     * A visitor class that fills the context of a solver (imports, local classes and type
+     * parameters) from a compilation unit
      */
-    class DataCollector extends VoidVisitorAdapter<SymbolSolver> {
+    static class DataCollector extends VoidVisitorAdapter<SymbolSolver> {
 
         private String currectClass = "";
         private String currentPackage = "";
@@ -153,7 +334,7 @@ public class SymbolSolver {
          */
         @Override
         public void visit(PackageDeclaration id, SymbolSolver data) {
-            data.knownWildcardImports.add(id.getNameAsString());
+            data.addPackage(id.getNameAsString());
             currentPackage = id.getNameAsString();
             super.visit(id, data);
         }
@@ -168,18 +349,11 @@ public class SymbolSolver {
                 String[] parts = name.split("\\.");
                 if (Character.isUpperCase(parts[parts.length - 1].charAt(0))) // class * import
                     return; // TODO - class wildcard imports
-                if (SymbolSolver.repoToPackage.get(data.repo).contains(name))
-                    knownWildcardImports.add(name);
-                else {
-                    if (unknownWildcardPackageImport == null)
-                        unknownWildcardPackageImport = name;
-                    else
-                        unknownWildcardPackageImport = "";
-                }
+                data.addWildcardImport(name);
             } else {
                 String[] path = name.split("\\.");
                 String className = path[path.length - 1];
-                localClassIndex.put(className, name.substring(0, name.length() - className.length() - 1));
+                data.localClassIndex.put(className, name.substring(0, name.length() - className.length() - 1));
             }
         }
 
@@ -192,9 +366,9 @@ public class SymbolSolver {
                 data.localClassIndex.put(id.getNameAsString(), currentPackage + "." + currectClass);
                 currectClass += "." + id.getNameAsString();
             }
-            classTypeParameters.putIfAbsent(currentPackage + "." + currectClass, new HashSet<>());
+            data.classTypeParameters.putIfAbsent(currentPackage + "." + currectClass, new HashSet<>());
             for (TypeParameter param: id.getTypeParameters())
-                classTypeParameters.get(currentPackage + "." + currectClass).add(param.getName().asString());
+                data.classTypeParameters.get(currentPackage + "." + currectClass).add(param.getName().asString());
             super.visit(id, data);
             if (currectClass.equals(id.getNameAsString()))
                 currectClass = "";
@@ -205,10 +379,12 @@ public class SymbolSolver {
         @Override
         public void visit(MethodDeclaration id, SymbolSolver data) {
             super.visit(id, data);
-            String methodName = currentPackage + "." + currectClass + "." + id.getNameAsString();
-            methodTypeParameters.putIfAbsent(methodName, new HashSet<>());
+            String className = currentPackage + "." + currectClass;
+            data.methodTypeParameters.putIfAbsent(className, new HashMap<>());
+            data.methodTypeParameters.get(className).putIfAbsent(id.getNameAsString(), new HashSet<>());
             for (TypeParameter param: id.getTypeParameters())
-                methodTypeParameters.get(methodName).add(param.getName().asString());
+                data.methodTypeParameters.get(className).get(id.getNameAsString()).add(
+                        param.getName().asString());
         }
     }
 
@@ -0,0 +1,45 @@
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The queries about the global class index that SymbolSolver and Parser need in order to resolve
+ * type names. ClassIndex answers them from its maps, BinaryClassIndex from a memory-mapped file
+ */
+public interface TypeIndex {
+
+    /**
+     * @param clazz a simple class name
+     * @return true iff a class with this name is defined in some package of some repository
+     */
+    boolean containsClass(String clazz);
+
+    /**
+     * Find a package in which the given repository defines a class with the given name
+     * @param clazz    a simple class name
+     * @param packages the packages to consider
+     * @param repo     the repository
+     * @return the first such package in the order of the index, or null if there is none
+     */
+    String findPackage(String clazz, Set<String> packages, String repo);
+
+    /**
+     * @param clazz a simple class name
+     * @param repo  a repository name
+     * @return the packages in which the repository defines a class with this name, in the order
+     * of the index (so findPackage returns the first of these that is one of its packages)
+     */
+    List<String> findPackages(String clazz, String repo);
+
+    /**
+     * @param repo a repository name
+     * @param pack a package name
+     * @return true iff the repository defines at least one class in this package
+     */
+    boolean hasPackage(String repo, String pack);
+
+    /**
+     * Get a set of repositories without duplicates (see ClassIndex.getValidRepos)
+     * @return
+     */
+    Set<String> getValidRepos();
+}
@@ -0,0 +1,319 @@
+import com.github.javaparser.JavaParser;
+import com.github.javaparser.ast.CompilationUnit;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A daemon that loads the global class index once (see SymbolSolver) and then extracts records
+ * from, or solves types in, the files it is sent over HTTP on the loopback interface, so that a
+ * few new files do not cost loading the index:
+ *   POST /parse    the body is lines in the format of the dump files ({"repo_name":...,
+ *                  "content":...}), and the response has a line for every one of them: its
+ *                  record as Parser writes it, or null if the file gives no record
+ *   POST /solve    the body is {"repo":..., "content":..., "types":[[type, class, method],...]},
+ *                  and the response is the array of SymbolSolver.solve(type, class, method)
+ *                  for the types in that file (null for those that cannot be solved)
+ *   GET /metrics   the metrics of the server and of Parser (see PipelineMetrics.summary)
+ * The files of a /parse batch are processed at the same time, and the files of a repository
+ * share its RepoContext, which is kept for the next requests (up to -DserverContexts
+ * repositories, 1000 by default). Requests run on virtual threads if the JVM has them, and on
+ * -Dworkers threads otherwise, in which case the files of a batch are processed one after the
+ * other. The server listens on port -Dport (8080 by default) and quarantines files that exceed
+ * the parse limits (see ParseLimits) to typeServer.quarantine.
+ */
+public class TypeServer {
+    static final PipelineMetrics metrics = PipelineMetrics.register("TypeServer");
+    static final LongAdder requests = metrics.counter("requests");
+    static final LongAdder batchedFiles = metrics.counter("batchedFiles");
+    static final LongAdder badRequests = metrics.counter("badRequests");
+    static final PipelineMetrics.LatencyHistogram requestLatency =
+            new PipelineMetrics.LatencyHistogram();
+
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+    private final int workers;
+    private final ParseLimits limits;
+    private final ConcurrentLinkedQueue<ClassIndex.Parsers> parsers =
+            new ConcurrentLinkedQueue<>();
+    private final Map<String, RepoContext> contexts;
+    private HttpServer server;
+
+    public static void main(String[] args) {
+        long start = System.nanoTime();
+        System.out.println("Loading the class index...");
+        // SymbolSolver loads the index when it is first used, which should not be by a request
+        // (Parser.ValidRepos alone does not use it if the index has a RepoStats file)
+        TypeIndex index = SymbolSolver.globalClassIndex;
+        long loaded = System.nanoTime();
+        System.out.printf("Loaded the class index with %d valid repositories in %.1f s%n",
+                Parser.ValidRepos.repos.size(), (loaded - start) / 1e9);
+        try {
+            TypeServer typeServer = new TypeServer(
+                    ParseLimits.fromProperties("typeServer.quarantine"),
+                    Integer.getInteger("serverContexts", 1000),
+                    Integer.getInteger("workers", Runtime.getRuntime().availableProcessors()));
+            typeServer.start(Integer.getInteger("port", 8080));
+            Runtime.getRuntime().addShutdownHook(new Thread(typeServer::stop));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @param limits      the limits on parsing files
+     * @param maxContexts the number of repositories whose contexts are kept between requests
+     * @param workers     the number of threads if there are no virtual threads
+     */
+    TypeServer(ParseLimits limits, int maxContexts, int workers) {
+        this.limits = limits;
+        this.contexts = new LinkedHashMap<String, RepoContext>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, RepoContext> eldest) {
+                return size() > maxContexts;
+            }
+        };
+        ExecutorService virtual = newVirtualThreadExecutor();
+        virtualThreads = virtual != null;
+        executor = virtual != null ? virtual : Executors.newFixedThreadPool(workers);
+        this.workers = workers;
+    }
+
+    /**
+     * @return Executors.newVirtualThreadPerTaskExecutor(), or null if the JVM has no virtual
+     * threads (it is looked up by reflection, since the code is compiled for Java 8)
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Start listening on the loopback interface
+     * @param port
+     * @throws IOException
+     */
+    void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                0);
+        server.setExecutor(executor);
+        server.createContext("/parse", exchange -> handle(exchange, "POST", this::parse));
+        server.createContext("/solve", exchange -> handle(exchange, "POST", this::solve));
+        server.createContext("/metrics", exchange -> handle(exchange, "GET", body -> metrics()));
+        server.start();
+        System.out.println("Serving on port " + server.getAddress().getPort() + " with " +
+                (virtualThreads ? "virtual threads" : workers + " threads"));
+    }
+
+    void stop() {
+        server.stop(1);
+        executor.shutdown();
+        try {
+            limits.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * A request that is not well formed
+     */
+    static class BadRequest extends Exception {
+        BadRequest(String message) {
+            super(message);
+        }
+    }
+
+    interface Handler {
+        /**
+         * @param body the body of the request
+         * @return the body of the response
+         */
+        String handle(byte[] body) throws BadRequest, IOException;
+    }
+
+    /**
+     * Answer a request with a handler, 400 if it is not well formed and 500 if it fails
+     */
+    private void handle(HttpExchange exchange, String method, Handler handler) throws IOException {
+        long start = System.nanoTime();
+        requests.increment();
+        int status = 200;
+        String response;
+        try {
+            if (!exchange.getRequestMethod().equals(method))
+                throw new BadRequest(exchange.getRequestMethod() + " is not supported");
+            response = handler.handle(readAll(exchange.getRequestBody()));
+        } catch (BadRequest e) {
+            badRequests.increment();
+            status = 400;
+            response = e.getMessage() + '\n';
+        } catch (IOException | RuntimeException e) {
+            metrics.failure(e.getClass().getSimpleName());
+            status = 500;
+            response = e + "\n";
+        }
+        byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", status == 200 ?
+                "application/json; charset=utf-8" : "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+        requestLatency.record(System.nanoTime() - start);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1 << 16];
+        for (int count; (count = in.read(buffer)) >= 0; )
+            bytes.write(buffer, 0, count);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Extract the records from a batch of files (see Parser.extractData)
+     */
+    private String parse(byte[] body) throws IOException {
+        List<byte[]> lines = new ArrayList<>();
+        for (int start = 0, end; start < body.length; start = end + 1) {
+            end = start;
+            while (end < body.length && body[end] != '\n')
+                end++;
+            if (end > start && !(end == start + 1 && body[start] == '\r'))
+                lines.add(Arrays.copyOfRange(body, start, end));
+        }
+        batchedFiles.add(lines.size());
+
+        List<Future<JSONObject>> results = new ArrayList<>(lines.size());
+        StringBuilder response = new StringBuilder();
+        for (byte[] line: lines) {
+            String repo = BigQueryLines.stringField(line, "repo_name");
+            RepoContext context = repo == null ? null : context(repo);
+            if (virtualThreads)
+                results.add(executor.submit(() -> extract(line, context)));
+            else
+                response.append(extract(line, context)).append('\n');
+        }
+        try {
+            for (Future<JSONObject> result: results)
+                response.append(result.get()).append('\n');
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        return response.toString();
+    }
+
+    private JSONObject extract(byte[] line, RepoContext context) {
+        ClassIndex.Parsers parsers = borrowParsers();
+        try {
+            return Parser.extractData(line, parsers.jsonParser, parsers.javaParser, limits,
+                    context);
+        } finally {
+            this.parsers.add(parsers);
+        }
+    }
+
+    /**
+     * Solve types in a file
+     */
+    @SuppressWarnings("unchecked")
+    private String solve(byte[] body) throws BadRequest {
+        JSONObject request;
+        try {
+            request = (JSONObject) new JSONParser().parse(
+                    new String(body, StandardCharsets.UTF_8));
+        } catch (ParseException | ClassCastException e) {
+            throw new BadRequest("The body is not a json object");
+        }
+        if (!(request.get("repo") instanceof String) ||
+                !(request.get("content") instanceof String) ||
+                !(request.get("types") instanceof JSONArray))
+            throw new BadRequest("The body needs a repo, a content and types");
+        String repo = (String) request.get("repo");
+        CompilationUnit ast;
+        ClassIndex.Parsers parsers = borrowParsers();
+        try {
+            ast = limits.parse(parsers.javaParser, (String) request.get("content"));
+        } catch (ParseLimits.LimitExceeded e) {
+            throw new BadRequest(e.getMessage());
+        } catch (Exception e) {
+            throw new BadRequest("The content cannot be parsed");
+        } finally {
+            this.parsers.add(parsers);
+        }
+        SymbolSolver solver = new SymbolSolver(repo, context(repo), ast);
+        JSONArray solved = new JSONArray();
+        for (Object type: (JSONArray) request.get("types")) {
+            if (!(type instanceof JSONArray) || ((JSONArray) type).size() != 3 ||
+                    !(((JSONArray) type).get(0) instanceof String) ||
+                    !(((JSONArray) type).get(1) instanceof String) ||
+                    !(((JSONArray) type).get(2) instanceof String))
+                throw new BadRequest("A type is not [type, class, method]: " + type);
+            JSONArray query = (JSONArray) type;
+            solved.add(solver.solve((String) query.get(0), (String) query.get(1),
+                    (String) query.get(2)));
+        }
+        return solved.toJSONString() + '\n';
+    }
+
+    private ClassIndex.Parsers borrowParsers() {
+        ClassIndex.Parsers borrowed = parsers.poll();
+        return borrowed != null ? borrowed : new ClassIndex.Parsers(new JSONParser(),
+                new JavaParser());
+    }
+
+    /**
+     * @return the context of a repository, which is created if it is not kept
+     */
+    private RepoContext context(String repo) {
+        synchronized (contexts) {
+            return contexts.computeIfAbsent(repo, RepoContext::new);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private String metrics() {
+        JSONObject summary = new JSONObject();
+        JSONObject server = metrics.summary();
+        TreeMap<String, Double> latency = new TreeMap<>();
+        latency.put("p50", requestLatency.percentile(0.5) / 1e6);
+        latency.put("p90", requestLatency.percentile(0.9) / 1e6);
+        latency.put("p99", requestLatency.percentile(0.99) / 1e6);
+        latency.put("max", requestLatency.max.get() / 1e6);
+        server.put("requestLatencyMillis", new JSONObject(latency));
+        summary.put("server", server);
+        summary.put("parser", Parser.metrics.summary());
+        return summary.toJSONString() + '\n';
+    }
+}
@@ -0,0 +1,225 @@
+#!/usr/bin/env python
+"""
+Read the records that Parser writes in its binary format (see BinaryRecords.java), which is
+smaller than the json lines and faster to load. A record is read as the same dict that
+json.loads() gives for the json line of the record.
+
+Run as a script to compare a binary file with the json lines it was converted from
+(java BinaryRecords jsonLinesFile recordsFile):
+
+``python parsed_reader.py ../data/parsed.rec ../data/parsed.json``
+"""
+import argparse
+import gzip
+import json
+import os
+import struct
+import sys
+import time
+
+MAGIC = b"TPR1"
+INT = struct.Struct(">I")
+
+
+def open_file(file_name):
+    """
+    Open a file for reading bytes, decompressing it if its name ends in .gz
+    """
+    if file_name.endswith(".gz"):
+        return gzip.open(file_name, "rb")
+    return open(file_name, "rb")
+
+
+def read_records(file_name, with_source=True):
+    """
+    Read the records of a binary file one by one, so only the current record is in memory
+    :param file_name:   a .rec or .rec.gz file written by Parser
+    :param with_source: whether to keep the source of the methods (leaving it out saves memory
+                        when only types and docs are needed, as in setup_dataset.py)
+    :return:            a generator of {'repo': ..., 'classes': {...}} dicts
+    """
+    types = []
+    with open_file(file_name) as f:
+        while True:
+            prefix = f.read(4)
+            if not prefix:
+                return
+            length, = INT.unpack(_read_exactly(f, 4, prefix, file_name))
+            if length == 0:  # the header of a segment, whose types are numbered from 0
+                if _read_exactly(f, 4, b"", file_name) != MAGIC:
+                    raise ValueError("{} is not a file of records".format(file_name))
+                types = []
+                continue
+            data = _read_exactly(f, length, b"", file_name)
+            yield _decode(data, 0, length, types, with_source)
+
+
+def _read_exactly(f, length, data, file_name):
+    """
+    Read from a file until there are length bytes (a compressed file may return fewer at once)
+    :param data: the bytes already read
+    """
+    while len(data) < length:
+        more = f.read(length - len(data))
+        if not more:
+            raise ValueError("{} ends in the middle of a record".format(file_name))
+        data += more
+    return data
+
+
+def _decode(data, position, end, types, with_source):
+    """
+    Decode the record at a position of the data (see BinaryRecords.java for the format). The
+    strings of the record are decoded at once and then cut by their lengths in characters
+    :param end:   the position after the record
+    :param types: the type names of the segment so far, to which the new ones are added
+    """
+    count, = INT.unpack_from(data, position)
+    start = position + 4 + 4 * count
+    ints = iter(struct.unpack_from(">%dI" % count, data, position + 4))
+    strings = data[start:end].decode("utf-8")
+
+    length = next(ints)
+    repo = strings[:length]
+    offset = length
+    classes = {}
+    for _ in range(next(ints)):
+        number = next(ints)
+        if number == len(types):
+            length = next(ints)
+            types.append(strings[offset:offset + length])
+            offset += length
+        class_name = types[number]
+        methods = {}
+        for _ in range(next(ints)):
+            length = next(ints)
+            name = strings[offset:offset + length]
+            offset += length
+            length = next(ints)
+            method = {'docstring': strings[offset:offset + length]}
+            offset += length
+            length = next(ints)
+            if with_source:
+                method['source'] = strings[offset:offset + length]
+            offset += length
+            number = next(ints)
+            if number == len(types):
+                length = next(ints)
+                types.append(strings[offset:offset + length])
+                offset += length
+            return_type = {'type': types[number]}
+            length = next(ints)
+            if length:
+                return_type['doc'] = strings[offset:offset + length]
+                offset += length
+            params = {}
+            for _ in range(next(ints)):
+                length = next(ints)
+                param_name = strings[offset:offset + length]
+                offset += length
+                number = next(ints)
+                if number == len(types):
+                    length = next(ints)
+                    types.append(strings[offset:offset + length])
+                    offset += length
+                param = {'type': types[number]}
+                length = next(ints)
+                if length:
+                    param['doc'] = strings[offset:offset + length]
+                    offset += length
+                params[param_name] = param
+            method['params'] = params
+            method['return'] = return_type
+            methods[name] = method
+        classes[class_name] = methods
+    return {'repo': repo, 'classes': classes}
+
+
+def read_json_lines(file_name):
+    """
+    Read the records of a file of json lines (the other output format of Parser)
+    :return: a generator of dicts
+    """
+    with open_file(file_name) as f:
+        for line in f:
+            if line.strip():
+                yield json.loads(line)
+
+
+def load_programs(file_names, with_source=True):
+    """
+    Load the records of the files Parser wrote for all the dump files into the
+    {repo: {class: {method: ...}}} format that setup_dataset.py reads from a .json file. The data
+    is preprocessed as notebooks/Preprocessing.ipynb does for that file: the classes of a
+    repository are joined over all records of all files, in the order of the file names, and
+    the repositories that duplicate another one are removed (see remove_duplicate_repos())
+    :param file_names:  the files, binary records (.rec or .rec.gz) or json lines
+    :param with_source: see read_records()
+    :return:            a dict of the classes of every repository, sorted by repository
+    """
+    programs = {}
+    for file_name in sorted(file_names):
+        if file_name.endswith(".rec") or file_name.endswith(".rec.gz"):
+            records = read_records(file_name, with_source)
+        else:
+            records = read_json_lines(file_name)
+        for record in records:
+            programs.setdefault(record['repo'], {}).update(record['classes'])
+    return remove_duplicate_repos({repo: programs[repo] for repo in sorted(programs)})
+
+
+def remove_duplicate_repos(programs):
+    """
+    Remove the repositories that share a class with a repository that has more classes (or
+    with an earlier one that has as many), as notebooks/Preprocessing.ipynb does
+    :param programs: a dict of the classes of every repository
+    :return:         a dict of the repositories that are kept, in the same order
+    """
+    repos = list(programs)
+    duplicates = set()  # indices of the repositories to remove
+    all_classes = {}  # class name -> index of the repository that has it
+    for i, repo in enumerate(repos):
+        classes = programs[repo]
+        for clazz in classes:
+            if clazz not in all_classes or all_classes[clazz] in duplicates:
+                all_classes[clazz] = i
+            elif len(classes) > len(programs[repos[all_classes[clazz]]]):
+                duplicates.add(all_classes[clazz])
+                all_classes[clazz] = i
+            else:
+                duplicates.add(i)
+    return {repo: programs[repo] for i, repo in enumerate(repos) if i not in duplicates}
+
+
+def compare(records_file, json_file):
+    """
+    Print the sizes of a binary file and of the json lines it was converted from, and how long
+    loading each of them takes, and check that they have the same records
+    """
+    start = time.perf_counter()
+    from_json = list(read_json_lines(json_file))
+    json_seconds = time.perf_counter() - start
+    start = time.perf_counter()
+    from_records = list(read_records(records_file))
+    records_seconds = time.perf_counter() - start
+    start = time.perf_counter()
+    without_source = list(read_records(records_file, with_source=False))
+    without_source_seconds = time.perf_counter() - start
+
+    print("json lines: {:12,d} bytes, {:7.3f} s".format(os.path.getsize(json_file),
+                                                        json_seconds))
+    print("records:    {:12,d} bytes, {:7.3f} s ({:.3f} s without the source)".format(
+        os.path.getsize(records_file), records_seconds, without_source_seconds))
+    if from_json != from_records:
+        print("The records are not the same as the json lines")
+        return False
+    print("{} records, the same in both files".format(len(from_records)))
+    return len(without_source) == len(from_records)
+
+
+if __name__ == "__main__":
+    p = argparse.ArgumentParser(description='Compare binary records with json lines.')
+    p.add_argument("records_file", type=str, help="file of binary records (.rec or .rec.gz)")
+    p.add_argument("json_file", type=str, help="the json lines the records were converted from")
+    args = p.parse_args(sys.argv[1:])
+    sys.exit(0 if compare(args.records_file, args.json_file) else 1)
@@ -1,11 +1,13 @@
 #!/usr/bin/env python
 import argparse
 from collections import Counter
+from glob import glob
 import json
 import pickle
 from sklearn.model_selection import train_test_split
 import sys
 import numpy as np
+import parsed_reader
 import tensorflow as tf
 from tqdm.auto import tqdm
 import warnings
@@ -233,7 +235,11 @@ def parse_arguments():
     :return:
     """
     p = argparse.ArgumentParser(description='Prepare the dataset for use by neural models.')
-    p.add_argument("json_file", type=argparse.FileType('r'), help="json file with all the data")
+    p.add_argument("json_file", type=str,
+                   help="json file with all the data (see notebooks/Preprocessing.ipynb), or "
+                        "a pattern of the binary records Parser wrote for all dump files "
+                        "(.rec or .rec.gz, e.g. '../data/GitHubParsed/*.rec'), which are "
+                        "preprocessed the same way (see parsed_reader.load_programs)")
     p.add_argument("prefix", type=str, help="prefix for all the generated files")
     p.add_argument("data_type", type=str, choices=["names", "comments", "nc"],
                    default="nc", help="type of the information recorded in the dataset")
@@ -263,7 +269,15 @@ if __name__ == "__main__":
     record_dp_func = record_dp_func_dict[args.data_type]
 
     # load the dataset, split it, and convert it into input-label format
-    data = json.load(args.json_file)
+    if args.json_file.endswith(".rec") or args.json_file.endswith(".rec.gz"):
+        # the records of all dump files, preprocessed as the json file is
+        record_files = glob(args.json_file)
+        if not record_files:
+            sys.exit("No files match " + args.json_file)
+        data = parsed_reader.load_programs(record_files, with_source=False)
+    else:
+        with open(args.json_file) as f:
+            data = json.load(f)
     programs_train, programs_test, programs_dev = train_test_dev_split(list(data.keys()),
                                                                        args.test_prog_list)
 